@@ -0,0 +1,138 @@
+package com.remind101.android.views;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+import android.graphics.Typeface;
+import android.text.Layout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+
+/**
+ * Holds the rasterized output of the {@link EnhancedTextView} effect passes (outer shadows,
+ * foreground, stroke and inner shadows) so they only have to be re-rendered when one of their
+ * inputs changes. Every other frame is a single bitmap blit.
+ */
+class EffectLayer {
+
+    private Bitmap bitmap;
+    // a hardware display list may still reference the bitmap after it was drawn
+    private boolean drawnToHardware;
+    private final Canvas canvas = new Canvas();
+
+    private boolean valid;
+    private int width;
+    private int height;
+    private int scrollX;
+    private int scrollY;
+    private Layout layout;
+    private int layoutWidth;
+    // the text instance and its characters; span changes are tracked by the view
+    private CharSequence textInstance;
+    private String text;
+    private float textSize;
+    private float textScaleX;
+    private Typeface typeface;
+    private int textColor;
+    private int hintTextColor;
+    private int paintFlags;
+    private int effectGeneration;
+
+    /**
+     * @return true when the cached pixels were rendered from exactly the current state of the view
+     */
+    boolean isValid(EnhancedTextView view, int effectGeneration) {
+        if (!valid || bitmap == null) {
+            return false;
+        }
+        TextPaint paint = view.getPaint();
+        Layout currentLayout = view.getLayout();
+        return width == view.getWidth()
+                && height == view.getHeight()
+                && scrollX == view.getScrollX()
+                && scrollY == view.getScrollY()
+                && layout == currentLayout
+                && (currentLayout == null || layoutWidth == currentLayout.getWidth())
+                && this.effectGeneration == effectGeneration
+                && textColor == view.getCurrentTextColor()
+                && hintTextColor == view.getCurrentHintTextColor()
+                && textSize == paint.getTextSize()
+                && textScaleX == paint.getTextScaleX()
+                && typeface == paint.getTypeface()
+                && paintFlags == paint.getFlags()
+                && textInstance == view.getText()
+                && TextUtils.equals(text, textInstance);
+    }
+
+    /**
+     * Prepares the layer for a new rendering and returns a cleared canvas that is translated the
+     * same way the view canvas is during {@link android.view.View#onDraw(Canvas)}.
+     */
+    Canvas begin(EnhancedTextView view) {
+        final int w = view.getWidth();
+        final int h = view.getHeight();
+        if (bitmap == null || bitmap.getWidth() != w || bitmap.getHeight() != h) {
+            recycleBitmap();
+            bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            canvas.setBitmap(bitmap);
+        } else {
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        }
+        canvas.save();
+        canvas.translate(-view.getScrollX(), -view.getScrollY());
+        return canvas;
+    }
+
+    /**
+     * Records the inputs the layer was just rendered from.
+     */
+    void end(EnhancedTextView view, int effectGeneration) {
+        canvas.restore();
+        TextPaint paint = view.getPaint();
+        Layout currentLayout = view.getLayout();
+        width = view.getWidth();
+        height = view.getHeight();
+        scrollX = view.getScrollX();
+        scrollY = view.getScrollY();
+        layout = currentLayout;
+        layoutWidth = currentLayout != null ? currentLayout.getWidth() : 0;
+        textInstance = view.getText();
+        text = textInstance.toString();
+        textSize = paint.getTextSize();
+        textScaleX = paint.getTextScaleX();
+        typeface = paint.getTypeface();
+        textColor = view.getCurrentTextColor();
+        hintTextColor = view.getCurrentHintTextColor();
+        paintFlags = paint.getFlags();
+        this.effectGeneration = effectGeneration;
+        valid = true;
+    }
+
+    void draw(Canvas target) {
+        target.drawBitmap(bitmap, scrollX, scrollY, null);
+        if (OffscreenBufferPool.isHardwareAccelerated(target)) {
+            drawnToHardware = true;
+        }
+    }
+
+    void release() {
+        valid = false;
+        layout = null;
+        textInstance = null;
+        text = null;
+        recycleBitmap();
+        bitmap = null;
+    }
+
+    /**
+     * Recycles the bitmap unless a display list may still draw it, in which case it is left to
+     * the garbage collector.
+     */
+    private void recycleBitmap() {
+        if (bitmap != null && !drawnToHardware) {
+            bitmap.recycle();
+        }
+        drawnToHardware = false;
+    }
+}
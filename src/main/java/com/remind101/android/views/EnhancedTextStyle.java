@@ -0,0 +1,281 @@
+package com.remind101.android.views;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.graphics.Paint.Join;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+import android.util.SparseArray;
+
+import com.remind101.android.enhancedviews.R;
+
+import java.util.WeakHashMap;
+
+/**
+ * Immutable, fully resolved set of {@link EnhancedTextView} attributes: typeface, effects,
+ * drawable touch behaviour and token colors/dimensions (including the {@code tokenStyle}
+ * fallbacks).
+ * <p/>
+ * Views whose XML only sets a {@code style} (and no EnhancedTextView attributes inline) share one
+ * instance per theme, style resource and default style attribute, so inflating a long list of
+ * identical rows resolves the attributes once instead of once per row.
+ */
+final class EnhancedTextStyle {
+
+    static final EnhancedTextStyle DEFAULT = new EnhancedTextStyle();
+
+    private static final WeakHashMap<Resources.Theme, SparseArray<SparseArray<EnhancedTextStyle>>> cache =
+            new WeakHashMap<Resources.Theme, SparseArray<SparseArray<EnhancedTextStyle>>>();
+
+    final String typeface;
+
+    final boolean hasDrawableSticky;
+    final boolean drawableSticky;
+
+    final boolean hasTextForeground;
+    private final Drawable textForeground;
+    private final Drawable.ConstantState textForegroundState;
+    final int textForegroundColor;
+
+    final boolean hasTextBackground;
+    private final Drawable textBackground;
+    private final Drawable.ConstantState textBackgroundState;
+    final int textBackgroundColor;
+
+    // false when a drawable cannot be re-created from its constant state
+    private final boolean shareable;
+
+    final EnhancedTextView.Shadow innerShadow;
+    final EnhancedTextView.Shadow outerShadow;
+
+    final boolean hasStroke;
+    final float strokeWidth;
+    final int strokeColor;
+    final float strokeMiter;
+    final Join strokeJoin;
+
+    final boolean effectCache;
+
+    // null means "use the view's default"
+    final Boolean consumeLeftDrawableTouch;
+    final Boolean consumeRightDrawableTouch;
+
+    final int tokenBackgroundColor;
+    final int tokenSelectedBackgroundColor;
+    final int tokenBorderColor;
+    final int tokenSelectedBorderColor;
+    final int tokenTextColor;
+    final int tokenSelectedTextColor;
+    final int tokenVerticalPadding;
+    final int tokenHorizontalPadding;
+    final int tokenBorderRadius;
+    final boolean tokenChipCache;
+    // created on first use, most views never show tokens
+    private TokenStyle tokenStyle;
+
+    private EnhancedTextStyle() {
+        typeface = null;
+        hasDrawableSticky = false;
+        drawableSticky = false;
+        hasTextForeground = false;
+        textForeground = null;
+        textForegroundState = null;
+        textForegroundColor = 0;
+        hasTextBackground = false;
+        textBackground = null;
+        textBackgroundState = null;
+        textBackgroundColor = 0;
+        shareable = true;
+        innerShadow = null;
+        outerShadow = null;
+        hasStroke = false;
+        strokeWidth = 0;
+        strokeColor = 0;
+        strokeMiter = 0;
+        strokeJoin = null;
+        effectCache = false;
+        consumeLeftDrawableTouch = null;
+        consumeRightDrawableTouch = null;
+        tokenBackgroundColor = 0;
+        tokenSelectedBackgroundColor = 0;
+        tokenBorderColor = 0;
+        tokenSelectedBorderColor = 0;
+        tokenTextColor = -1;
+        tokenSelectedTextColor = -1;
+        tokenVerticalPadding = 0;
+        tokenHorizontalPadding = 0;
+        tokenBorderRadius = 0;
+        tokenChipCache = false;
+    }
+
+    private EnhancedTextStyle(Context context, TypedArray a) {
+        typeface = a.getString(R.styleable.EnhancedTextView_typeface);
+
+        hasDrawableSticky = a.hasValue(R.styleable.EnhancedTextView_drawableSticky);
+        drawableSticky = a.getBoolean(R.styleable.EnhancedTextView_drawableSticky, false);
+
+        hasTextForeground = a.hasValue(R.styleable.EnhancedTextView_textForeground);
+        textForeground = hasTextForeground ? a.getDrawable(R.styleable.EnhancedTextView_textForeground) : null;
+        textForegroundState = textForeground != null ? textForeground.getConstantState() : null;
+        textForegroundColor = hasTextForeground && textForeground == null
+                ? a.getColor(R.styleable.EnhancedTextView_textForeground, 0xff000000) : 0;
+
+        hasTextBackground = a.hasValue(R.styleable.EnhancedTextView_textBackground);
+        textBackground = hasTextBackground ? a.getDrawable(R.styleable.EnhancedTextView_textBackground) : null;
+        textBackgroundState = textBackground != null ? textBackground.getConstantState() : null;
+        textBackgroundColor = hasTextBackground && textBackground == null
+                ? a.getColor(R.styleable.EnhancedTextView_textBackground, 0xff000000) : 0;
+        shareable = (textForeground == null || textForegroundState != null)
+                && (textBackground == null || textBackgroundState != null);
+
+        if (a.hasValue(R.styleable.EnhancedTextView_innerShadowColor)) {
+            innerShadow = new EnhancedTextView.Shadow(a.getFloat(R.styleable.EnhancedTextView_innerShadowRadius, 0),
+                    a.getFloat(R.styleable.EnhancedTextView_innerShadowDx, 0),
+                    a.getFloat(R.styleable.EnhancedTextView_innerShadowDy, 0),
+                    a.getColor(R.styleable.EnhancedTextView_innerShadowColor, 0xff000000));
+        } else {
+            innerShadow = null;
+        }
+
+        if (a.hasValue(R.styleable.EnhancedTextView_outerShadowColor)) {
+            outerShadow = new EnhancedTextView.Shadow(a.getFloat(R.styleable.EnhancedTextView_outerShadowRadius, 0),
+                    a.getFloat(R.styleable.EnhancedTextView_outerShadowDx, 0),
+                    a.getFloat(R.styleable.EnhancedTextView_outerShadowDy, 0),
+                    a.getColor(R.styleable.EnhancedTextView_outerShadowColor, 0xff000000));
+        } else {
+            outerShadow = null;
+        }
+
+        hasStroke = a.hasValue(R.styleable.EnhancedTextView_strokeColor);
+        strokeWidth = a.getFloat(R.styleable.EnhancedTextView_strokeWidth, 1);
+        strokeColor = a.getColor(R.styleable.EnhancedTextView_strokeColor, 0xff000000);
+        strokeMiter = a.getFloat(R.styleable.EnhancedTextView_strokeMiter, 10);
+        switch (a.getInt(R.styleable.EnhancedTextView_strokeJoinStyle, 0)) {
+            case (1):
+                strokeJoin = Join.BEVEL;
+                break;
+            case (2):
+                strokeJoin = Join.ROUND;
+                break;
+            default:
+                strokeJoin = Join.MITER;
+                break;
+        }
+
+        effectCache = a.getBoolean(R.styleable.EnhancedTextView_effectCache, false);
+        consumeLeftDrawableTouch = a.hasValue(R.styleable.EnhancedTextView_consumeLeftDrawableTouch)
+                ? a.getBoolean(R.styleable.EnhancedTextView_consumeLeftDrawableTouch, false) : null;
+        consumeRightDrawableTouch = a.hasValue(R.styleable.EnhancedTextView_consumeRightDrawableTouch)
+                ? a.getBoolean(R.styleable.EnhancedTextView_consumeRightDrawableTouch, true) : null;
+
+        int tokenStyle = a.getResourceId(R.styleable.EnhancedTextView_tokenStyle, -1);
+        if (tokenStyle > 0) {
+            TypedArray tokenStyleArray = context.obtainStyledAttributes(tokenStyle, R.styleable.EnhancedTextView);
+
+            tokenBackgroundColor = a.getColor(R.styleable.EnhancedTextView_tokenBackgroundColor, tokenStyleArray.getColor(R.styleable.EnhancedTextView_tokenBackgroundColor, 0));
+            tokenSelectedBackgroundColor = a.getColor(R.styleable.EnhancedTextView_tokenSelectedBackgroundColor, tokenStyleArray.getColor(R.styleable.EnhancedTextView_tokenSelectedBackgroundColor, tokenBackgroundColor));
+            tokenBorderColor = a.getColor(R.styleable.EnhancedTextView_tokenBorderColor, tokenStyleArray.getColor(R.styleable.EnhancedTextView_tokenBorderColor, 0));
+            tokenSelectedBorderColor = a.getColor(R.styleable.EnhancedTextView_tokenSelectedBorderColor, tokenStyleArray.getColor(R.styleable.EnhancedTextView_tokenSelectedBorderColor, tokenBorderColor));
+            tokenTextColor = a.getColor(R.styleable.EnhancedTextView_tokenTextColor, tokenStyleArray.getColor(R.styleable.EnhancedTextView_tokenTextColor, -1));
+            tokenSelectedTextColor = a.getColor(R.styleable.EnhancedTextView_tokenSelectedTextColor, tokenStyleArray.getColor(R.styleable.EnhancedTextView_tokenSelectedTextColor, tokenTextColor));
+            tokenVerticalPadding = a.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenVerticalPadding, tokenStyleArray.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenVerticalPadding, 0));
+            tokenHorizontalPadding = a.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenHorizontalPadding, tokenStyleArray.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenHorizontalPadding, 0));
+            tokenBorderRadius = a.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenBorderRadius, tokenStyleArray.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenBorderRadius, 0));
+            tokenChipCache = a.getBoolean(R.styleable.EnhancedTextView_tokenChipCache, tokenStyleArray.getBoolean(R.styleable.EnhancedTextView_tokenChipCache, false));
+            tokenStyleArray.recycle();
+        } else {
+            tokenBackgroundColor = a.getColor(R.styleable.EnhancedTextView_tokenBackgroundColor, 0);
+            tokenSelectedBackgroundColor = a.getColor(R.styleable.EnhancedTextView_tokenSelectedBackgroundColor, tokenBackgroundColor);
+            tokenBorderColor = a.getColor(R.styleable.EnhancedTextView_tokenBorderColor, 0);
+            tokenSelectedBorderColor = a.getColor(R.styleable.EnhancedTextView_tokenSelectedBorderColor, tokenBorderColor);
+            tokenTextColor = a.getColor(R.styleable.EnhancedTextView_tokenTextColor, -1);
+            tokenSelectedTextColor = a.getColor(R.styleable.EnhancedTextView_tokenSelectedTextColor, tokenTextColor);
+            tokenVerticalPadding = a.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenVerticalPadding, 0);
+            tokenHorizontalPadding = a.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenHorizontalPadding, 0);
+            tokenBorderRadius = a.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenBorderRadius, 0);
+            tokenChipCache = a.getBoolean(R.styleable.EnhancedTextView_tokenChipCache, false);
+        }
+    }
+
+    /**
+     * Returns the resolved attributes for a view being inflated with {@code attrs}, reusing a
+     * previously resolved instance whenever the result cannot differ from it.
+     */
+    static EnhancedTextStyle obtain(Context context, AttributeSet attrs, int defStyle) {
+        final Resources.Theme theme = context.getTheme();
+        if (theme == null || hasInlineAttributes(attrs)) {
+            return resolve(context, attrs, defStyle);
+        }
+
+        final int styleRes = attrs.getStyleAttribute();
+        SparseArray<SparseArray<EnhancedTextStyle>> byStyle = cache.get(theme);
+        if (byStyle == null) {
+            byStyle = new SparseArray<SparseArray<EnhancedTextStyle>>();
+            cache.put(theme, byStyle);
+        }
+        SparseArray<EnhancedTextStyle> byDefStyle = byStyle.get(styleRes);
+        if (byDefStyle == null) {
+            byDefStyle = new SparseArray<EnhancedTextStyle>(2);
+            byStyle.put(styleRes, byDefStyle);
+        }
+        EnhancedTextStyle style = byDefStyle.get(defStyle);
+        if (style == null) {
+            style = resolve(context, attrs, defStyle);
+            if (style.shareable) {
+                byDefStyle.put(defStyle, style);
+            }
+        }
+        return style;
+    }
+
+    private static EnhancedTextStyle resolve(Context context, AttributeSet attrs, int defStyle) {
+        TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.EnhancedTextView, defStyle, android.R.style.Widget_TextView);
+        try {
+            return new EnhancedTextStyle(context, a);
+        } finally {
+            a.recycle();
+        }
+    }
+
+    /**
+     * @return true if any EnhancedTextView attribute is set directly on the XML element, in which
+     * case the resolved values are specific to that element and cannot be shared
+     */
+    private static boolean hasInlineAttributes(AttributeSet attrs) {
+        final int[] styleable = R.styleable.EnhancedTextView;
+        for (int i = 0, count = attrs.getAttributeCount(); i < count; i++) {
+            final int nameResource = attrs.getAttributeNameResource(i);
+            for (int attr : styleable) {
+                if (attr == nameResource) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the token chip style shared by every view using this style
+     */
+    TokenStyle getTokenStyle() {
+        if (tokenStyle == null) {
+            tokenStyle = new TokenStyle(this);
+        }
+        return tokenStyle;
+    }
+
+    /**
+     * @return a new instance of the {@code textForeground} drawable, or null if it is a color
+     */
+    Drawable newTextForeground() {
+        return textForegroundState != null ? textForegroundState.newDrawable() : textForeground;
+    }
+
+    /**
+     * @return a new instance of the {@code textBackground} drawable, or null if it is a color
+     */
+    Drawable newTextBackground() {
+        return textBackgroundState != null ? textBackgroundState.newDrawable() : textBackground;
+    }
+}
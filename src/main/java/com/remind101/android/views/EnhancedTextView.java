@@ -2,8 +2,6 @@ package com.remind101.android.views;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.res.ColorStateList;
-import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.BlurMaskFilter;
 import android.graphics.Canvas;
@@ -19,12 +17,20 @@ import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.PaintDrawable;
 import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.text.Layout;
+import android.text.NoCopySpan;
+import android.text.Selection;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.SpannedString;
 import android.text.TextPaint;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.FloatMath;
-import android.util.Pair;
 import android.view.Gravity;
 import android.view.MotionEvent;
 import android.widget.TextView;
@@ -34,8 +40,8 @@ import com.remind101.ui.listeners.OnSelectionChangeListener;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
-import java.util.Locale;
-import java.util.WeakHashMap;
+import java.util.Collections;
+import java.util.List;
 
 public class EnhancedTextView extends TextView {
 
@@ -43,9 +49,6 @@ public class EnhancedTextView extends TextView {
     private ArrayList<Shadow> outerShadows;
     private ArrayList<Shadow> innerShadows;
     private ArrayList<BlurMaskFilter> innerShadowFilters;
-    private WeakHashMap<String, Pair<Canvas, Bitmap>> canvasStore;
-    private Canvas tempCanvas;
-    private Bitmap tempBitmap;
     private Drawable foregroundDrawable;
     private float strokeWidth;
     private Integer strokeColor;
@@ -56,29 +59,56 @@ public class EnhancedTextView extends TextView {
     private boolean decresingLineSpace;
     private Drawable[] originalDrawables;
     private TextPaint textPaint;
-    private TextView tv;
+    private static Field spacingAddField;
+    // Effect state below is only allocated once an effect is used, so a plain instance costs
+    // about as much as a stock TextView.
     private Rect reusableRect; // Avoid allocation inside onDraw()
+    private Rect effectBounds;
+    private TextEffectRenderer effectRenderer;
+    private Paint innerShadowPaint;
+    private Paint innerShadowErasePaint;
+    private boolean effectCacheEnabled;
+    private EffectSpanWatcher effectSpanWatcher;
+    // layout of the hint for the effect passes, TextView does not expose its own
+    private Layout hintEffectLayout;
+    private CharSequence hintEffectLayoutHint;
+    private float hintEffectLayoutTextSize;
+    private Typeface hintEffectLayoutTypeface;
+    private EffectLayer effectLayer;
+    private boolean tokenChipCacheEnabled;
+    private int tokenCollapseLines;
+    private String tokenSummaryFormat = "+%d more";
+    private Runnable tokenCollapseUpdate;
+    private int effectGeneration;
+    private final Paint.FontMetrics tokenFontMetrics = new Paint.FontMetrics();
     private static final PorterDuffXfermode SRC_ATOP_XFER_MODE = new PorterDuffXfermode(PorterDuff.Mode.SRC_ATOP);
     private static final PorterDuffXfermode DST_OUT_XFER_MODE = new PorterDuffXfermode(PorterDuff.Mode.DST_OUT);
 
     private OnSelectionChangeListener onSelectionChangedListener;
+    private TokenManager tokenManager;
 
     private OnDrawableClick onDrawableClickListener;
+    private static final int[] PRESSED_DRAWABLE_STATE = {android.R.attr.state_pressed};
+    private static final int[] EMPTY_DRAWABLE_STATE = {};
+    private boolean drawableHitRectsValid;
+    private Rect leftDrawableHitRect;
+    private Rect rightDrawableHitRect;
+    private Drawable hitLeftDrawable;
+    private Drawable hitRightDrawable;
+    private boolean leftDrawablePressed;
+    private boolean rightDrawablePressed;
     private Rect textBounds;
+    // Sticky drawable geometry, recomputed only when the text or the layout changes
+    private boolean stickyGeometryValid;
+    private Layout stickyGeometryLayout;
+    private int stickyGeometryLayoutWidth;
+    private float stickyLineLeft;
+    private float stickyLineRight;
+    private char[] stickyTextBuffer;
     private boolean consumeLeftDrawableTouch;
     private boolean consumeRightDrawableTouch;
 
-    private int tokenBackgroundColor = 0;
-    private int tokenBorderColor = 0;
-    private int tokenTextColor = -1;
-
-    private int tokenSelectedTextColor = -1;
-    private int tokenSelectedBackgroundColor = 0;
-    private int tokenSelectedBorderColor = 0;
-
-    private int tokenVerticalPadding;
-    private int tokenHorizontalPadding;
-    private int tokenBorderRadius;
+    private EnhancedTextStyle style = EnhancedTextStyle.DEFAULT;
 
     protected static final int LEFT = 0;
     protected static final int TOP = 1;
@@ -102,61 +132,139 @@ public class EnhancedTextView extends TextView {
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         if (onDrawableClickListener != null) {
-            Drawable rightDrawable = getCompoundDrawables()[2];
+            ensureDrawableHitRects();
+            final int x = (int) event.getX();
+            final int y = (int) event.getY();
+            final int action = event.getAction();
+
+            final Drawable rightDrawable = hitRightDrawable;
             if (rightDrawable != null) {
-                Rect rightBounds = getRightDrawableBounds();
-                boolean isInRightDrawable = rightBounds.contains((int) event.getX(), (int) event.getY());
-                if (isInRightDrawable) {
-                    switch (event.getAction()) {
+                if (rightDrawableHitRect.contains(x, y)) {
+                    switch (action) {
                         case MotionEvent.ACTION_DOWN:
                         case MotionEvent.ACTION_MOVE:
-                            rightDrawable.setState(new int[]{android.R.attr.state_pressed});
-                            rightDrawable.invalidateSelf();
+                            if (!rightDrawablePressed) {
+                                rightDrawablePressed = true;
+                                setDrawablePressed(rightDrawable, true);
+                            }
                             break;
                         case MotionEvent.ACTION_UP:
-                            rightDrawable.setState(null);
-                            rightDrawable.invalidateSelf();
+                            rightDrawablePressed = false;
+                            setDrawablePressed(rightDrawable, false);
                             onDrawableClickListener.onRightDrawableClick(this);
                             break;
+                        case MotionEvent.ACTION_CANCEL:
+                            if (rightDrawablePressed) {
+                                rightDrawablePressed = false;
+                                setDrawablePressed(rightDrawable, false);
+                            }
+                            break;
                     }
                     return consumeRightDrawableTouch || super.onTouchEvent(event);
-                } else {
-                    if (rightDrawable.getState() != null) {
-                        rightDrawable.setState(null);
-                        rightDrawable.invalidateSelf();
-                    }
+                } else if (rightDrawablePressed) {
+                    rightDrawablePressed = false;
+                    setDrawablePressed(rightDrawable, false);
                 }
             }
 
-            Drawable leftDrawable = getCompoundDrawables()[0];
+            final Drawable leftDrawable = hitLeftDrawable;
             if (leftDrawable != null) {
-                Rect leftBounds = getLeftDrawableBounds();
-                boolean isInLeftDrawable = leftBounds.contains((int) event.getX(), (int) event.getY());
-                if (isInLeftDrawable) {
-                    switch (event.getAction()) {
+                if (leftDrawableHitRect.contains(x, y)) {
+                    switch (action) {
                         case MotionEvent.ACTION_DOWN:
                         case MotionEvent.ACTION_MOVE:
-                            leftDrawable.setState(new int[]{android.R.attr.state_pressed});
-                            leftDrawable.invalidateSelf();
+                            if (!leftDrawablePressed) {
+                                leftDrawablePressed = true;
+                                setDrawablePressed(leftDrawable, true);
+                            }
                             break;
                         case MotionEvent.ACTION_UP:
-                            leftDrawable.setState(null);
-                            leftDrawable.invalidateSelf();
+                            leftDrawablePressed = false;
+                            setDrawablePressed(leftDrawable, false);
                             onDrawableClickListener.onLeftDrawableClick(this);
                             break;
+                        case MotionEvent.ACTION_CANCEL:
+                            if (leftDrawablePressed) {
+                                leftDrawablePressed = false;
+                                setDrawablePressed(leftDrawable, false);
+                            }
+                            break;
                     }
                     return consumeLeftDrawableTouch || super.onTouchEvent(event);
-                } else {
-                    if (leftDrawable.getState() != null) {
-                        leftDrawable.setState(null);
-                        leftDrawable.invalidateSelf();
-                    }
+                } else if (leftDrawablePressed) {
+                    leftDrawablePressed = false;
+                    setDrawablePressed(leftDrawable, false);
                 }
             }
         }
         return super.onTouchEvent(event);
     }
 
+    private static void setDrawablePressed(Drawable drawable, boolean pressed) {
+        drawable.setState(pressed ? PRESSED_DRAWABLE_STATE : EMPTY_DRAWABLE_STATE);
+        drawable.invalidateSelf();
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        super.onLayout(changed, left, top, right, bottom);
+        drawableHitRectsValid = false;
+        if (onDrawableClickListener != null) {
+            ensureDrawableHitRects();
+        }
+    }
+
+    @Override
+    protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+        super.onScrollChanged(l, t, oldl, oldt);
+        drawableHitRectsValid = false;
+    }
+
+    @Override
+    public void setCompoundDrawables(Drawable left, Drawable top, Drawable right, Drawable bottom) {
+        super.setCompoundDrawables(left, top, right, bottom);
+        drawableHitRectsValid = false;
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public void setCompoundDrawablesRelative(Drawable start, Drawable top, Drawable end, Drawable bottom) {
+        super.setCompoundDrawablesRelative(start, top, end, bottom);
+        drawableHitRectsValid = false;
+    }
+
+    /**
+     * Computes the touch regions of the left and right compound drawables. They are refreshed
+     * on layout, so touch events only test against the stored rects.
+     */
+    private void ensureDrawableHitRects() {
+        if (drawableHitRectsValid) {
+            return;
+        }
+        if (leftDrawableHitRect == null) {
+            leftDrawableHitRect = new Rect();
+            rightDrawableHitRect = new Rect();
+        }
+        final Drawable[] drawables = getCompoundDrawables();
+        if (hitLeftDrawable != drawables[LEFT]) {
+            leftDrawablePressed = false;
+        }
+        if (hitRightDrawable != drawables[RIGHT]) {
+            rightDrawablePressed = false;
+        }
+        hitLeftDrawable = drawables[LEFT];
+        hitRightDrawable = drawables[RIGHT];
+        leftDrawableHitRect.setEmpty();
+        rightDrawableHitRect.setEmpty();
+        if (hitLeftDrawable != null) {
+            getDrawableBounds(LEFT, leftDrawableHitRect);
+        }
+        if (hitRightDrawable != null) {
+            getDrawableBounds(RIGHT, rightDrawableHitRect);
+        }
+        drawableHitRectsValid = true;
+    }
+
     public Rect getLeftDrawableBounds() {
         return getDrawableBounds(LEFT);
     }
@@ -187,144 +295,91 @@ public class EnhancedTextView extends TextView {
     }
 
     public void init(AttributeSet attrs, int defStyle) {
-        tv = new TextView(getContext());
-        outerShadows = new ArrayList<Shadow>();
-        innerShadows = new ArrayList<Shadow>();
-        innerShadowFilters = new ArrayList<BlurMaskFilter>();
-        reusableRect = new Rect();
-        if (canvasStore == null) {
-            canvasStore = new WeakHashMap<String, Pair<Canvas, Bitmap>>();
-        }
-
         if (attrs != null) {
-            TypedArray a = getContext().obtainStyledAttributes(attrs, R.styleable.EnhancedTextView, defStyle, android.R.style.Widget_TextView);
-            String typefaceName = a.getString(R.styleable.EnhancedTextView_typeface);
-            if (!TextUtils.isEmpty(typefaceName) && !isInEditMode()) {
-                try {
-                    Typeface tf = Typeface.createFromAsset(getContext().getAssets(), String.format("fonts/%s.ttf", typefaceName));
-                    this.setTypeface(tf);
-                } catch (RuntimeException e) {
-                    e.printStackTrace();
-                }
+            style = EnhancedTextStyle.obtain(getContext(), attrs, defStyle);
+            applyStyle(style);
+        }
+    }
 
+    private void applyStyle(EnhancedTextStyle style) {
+        String typefaceName = style.typeface;
+        if (!TextUtils.isEmpty(typefaceName) && !isInEditMode()) {
+            try {
+                this.setTypeface(TypefaceCache.get(getContext(), typefaceName));
+            } catch (RuntimeException e) {
+                e.printStackTrace();
             }
 
-            if (a.hasValue(R.styleable.EnhancedTextView_drawableSticky)) {
-                isDrawableSticky = a.getBoolean(R.styleable.EnhancedTextView_drawableSticky, false);
-                originalDrawables = this.getCompoundDrawables();
-                textPaint = new TextPaint();
-                textPaint.setTextSize(this.getTextSize());
-                textPaint.setTypeface(this.getTypeface());
-                PaintDrawable bd0 = null;
-                if (originalDrawables[0] != null) {
-                    bd0 = new PaintDrawable(Color.TRANSPARENT);
-                    bd0.setBounds(0, 0, originalDrawables[0].getIntrinsicWidth(), originalDrawables[0].getIntrinsicHeight());
-                }
-                PaintDrawable bd1 = null;
-                if (originalDrawables[1] != null) {
-                    bd1 = new PaintDrawable(Color.TRANSPARENT);
-                    bd1.setBounds(0, 0, originalDrawables[1].getIntrinsicWidth(), originalDrawables[1].getIntrinsicHeight());
-                }
-                PaintDrawable bd2 = null;
-                if (originalDrawables[2] != null) {
-                    bd2 = new PaintDrawable(Color.TRANSPARENT);
-                    bd2.setBounds(0, 0, originalDrawables[2].getIntrinsicWidth(), originalDrawables[2].getIntrinsicHeight());
-                }
-                PaintDrawable bd3 = null;
-                if (originalDrawables[3] != null) {
-                    bd3 = new PaintDrawable(Color.TRANSPARENT);
-                    bd3.setBounds(0, 0, originalDrawables[3].getIntrinsicWidth(), originalDrawables[3].getIntrinsicHeight());
-                }
-                textBounds = new Rect();
-                this.setCompoundDrawables(bd0, bd1, bd2, bd3);
-            }
+        }
 
-            if (a.hasValue(R.styleable.EnhancedTextView_textForeground)) {
-                Drawable foreground = a.getDrawable(R.styleable.EnhancedTextView_textForeground);
-                if (foreground != null) {
-                    this.setForegroundDrawable(foreground);
-                } else {
-                    this.setTextColor(a.getColor(R.styleable.EnhancedTextView_textForeground, 0xff000000));
-                }
+        if (style.hasDrawableSticky) {
+            isDrawableSticky = style.drawableSticky;
+            originalDrawables = this.getCompoundDrawables();
+            textPaint = new TextPaint();
+            textPaint.setTextSize(this.getTextSize());
+            textPaint.setTypeface(this.getTypeface());
+            PaintDrawable bd0 = null;
+            if (originalDrawables[0] != null) {
+                bd0 = new PaintDrawable(Color.TRANSPARENT);
+                bd0.setBounds(0, 0, originalDrawables[0].getIntrinsicWidth(), originalDrawables[0].getIntrinsicHeight());
             }
-
-            if (a.hasValue(R.styleable.EnhancedTextView_textBackground)) {
-                Drawable background = a.getDrawable(R.styleable.EnhancedTextView_textBackground);
-                if (background != null) {
-                    this.setBackgroundDrawable(background);
-                } else {
-                    this.setBackgroundColor(a.getColor(R.styleable.EnhancedTextView_textBackground, 0xff000000));
-                }
+            PaintDrawable bd1 = null;
+            if (originalDrawables[1] != null) {
+                bd1 = new PaintDrawable(Color.TRANSPARENT);
+                bd1.setBounds(0, 0, originalDrawables[1].getIntrinsicWidth(), originalDrawables[1].getIntrinsicHeight());
             }
-
-
-            if (a.hasValue(R.styleable.EnhancedTextView_innerShadowColor)) {
-                this.addInnerShadow(a.getFloat(R.styleable.EnhancedTextView_innerShadowRadius, 0),
-                        a.getFloat(R.styleable.EnhancedTextView_innerShadowDx, 0),
-                        a.getFloat(R.styleable.EnhancedTextView_innerShadowDy, 0),
-                        a.getColor(R.styleable.EnhancedTextView_innerShadowColor, 0xff000000));
+            PaintDrawable bd2 = null;
+            if (originalDrawables[2] != null) {
+                bd2 = new PaintDrawable(Color.TRANSPARENT);
+                bd2.setBounds(0, 0, originalDrawables[2].getIntrinsicWidth(), originalDrawables[2].getIntrinsicHeight());
             }
-
-            if (a.hasValue(R.styleable.EnhancedTextView_outerShadowColor)) {
-                this.addOuterShadow(a.getFloat(R.styleable.EnhancedTextView_outerShadowRadius, 0),
-                        a.getFloat(R.styleable.EnhancedTextView_outerShadowDx, 0),
-                        a.getFloat(R.styleable.EnhancedTextView_outerShadowDy, 0),
-                        a.getColor(R.styleable.EnhancedTextView_outerShadowColor, 0xff000000));
+            PaintDrawable bd3 = null;
+            if (originalDrawables[3] != null) {
+                bd3 = new PaintDrawable(Color.TRANSPARENT);
+                bd3.setBounds(0, 0, originalDrawables[3].getIntrinsicWidth(), originalDrawables[3].getIntrinsicHeight());
             }
+            textBounds = new Rect();
+            reusableRect = new Rect();
+            this.setCompoundDrawables(bd0, bd1, bd2, bd3);
+        }
 
-            if (a.hasValue(R.styleable.EnhancedTextView_strokeColor)) {
-                float strokeWidth = a.getFloat(R.styleable.EnhancedTextView_strokeWidth, 1);
-                int strokeColor = a.getColor(R.styleable.EnhancedTextView_strokeColor, 0xff000000);
-                float strokeMiter = a.getFloat(R.styleable.EnhancedTextView_strokeMiter, 10);
-                Join strokeJoin = null;
-                switch (a.getInt(R.styleable.EnhancedTextView_strokeJoinStyle, 0)) {
-                    case (0):
-                        strokeJoin = Join.MITER;
-                        break;
-                    case (1):
-                        strokeJoin = Join.BEVEL;
-                        break;
-                    case (2):
-                        strokeJoin = Join.ROUND;
-                        break;
-                }
-                this.setStroke(strokeWidth, strokeColor, strokeJoin, strokeMiter);
+        if (style.hasTextForeground) {
+            Drawable foreground = style.newTextForeground();
+            if (foreground != null) {
+                this.setForegroundDrawable(foreground);
+            } else {
+                this.setTextColor(style.textForegroundColor);
             }
-            consumeLeftDrawableTouch = a.getBoolean(
-                    R.styleable.EnhancedTextView_consumeLeftDrawableTouch,
-                    consumeLeftDrawableTouchByDefault());
-            consumeRightDrawableTouch = a.getBoolean(
-                    R.styleable.EnhancedTextView_consumeRightDrawableTouch,
-                    consumeRightDrawableTouchByDefault());
-
-            int tokenStyle = a.getResourceId(R.styleable.EnhancedTextView_tokenStyle, -1);
-            if (tokenStyle > 0) {
-                TypedArray tokenStyleArray = getContext().obtainStyledAttributes(tokenStyle, R.styleable.EnhancedTextView);
-
-                tokenBackgroundColor = a.getColor(R.styleable.EnhancedTextView_tokenBackgroundColor, tokenStyleArray.getColor(R.styleable.EnhancedTextView_tokenBackgroundColor, 0));
-                tokenSelectedBackgroundColor = a.getColor(R.styleable.EnhancedTextView_tokenSelectedBackgroundColor, tokenStyleArray.getColor(R.styleable.EnhancedTextView_tokenSelectedBackgroundColor, tokenBackgroundColor));
-                tokenBorderColor = a.getColor(R.styleable.EnhancedTextView_tokenBorderColor, tokenStyleArray.getColor(R.styleable.EnhancedTextView_tokenBorderColor, 0));
-                tokenSelectedBorderColor = a.getColor(R.styleable.EnhancedTextView_tokenSelectedBorderColor, tokenStyleArray.getColor(R.styleable.EnhancedTextView_tokenSelectedBorderColor, tokenBorderColor));
-                tokenTextColor = a.getColor(R.styleable.EnhancedTextView_tokenTextColor, tokenStyleArray.getColor(R.styleable.EnhancedTextView_tokenTextColor, -1));
-                tokenSelectedTextColor = a.getColor(R.styleable.EnhancedTextView_tokenSelectedTextColor, tokenStyleArray.getColor(R.styleable.EnhancedTextView_tokenSelectedTextColor, tokenTextColor));
-                tokenVerticalPadding = a.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenVerticalPadding, tokenStyleArray.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenVerticalPadding, 0));
-                tokenHorizontalPadding = a.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenHorizontalPadding, tokenStyleArray.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenHorizontalPadding, 0));
-                tokenBorderRadius = a.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenBorderRadius, tokenStyleArray.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenBorderRadius, 0));
-                tokenStyleArray.recycle();
+        }
+
+        if (style.hasTextBackground) {
+            Drawable background = style.newTextBackground();
+            if (background != null) {
+                this.setBackgroundDrawable(background);
             } else {
-                tokenBackgroundColor = a.getColor(R.styleable.EnhancedTextView_tokenBackgroundColor, 0);
-                tokenSelectedBackgroundColor = a.getColor(R.styleable.EnhancedTextView_tokenSelectedBackgroundColor, tokenBackgroundColor);
-                tokenBorderColor = a.getColor(R.styleable.EnhancedTextView_tokenBorderColor, 0);
-                tokenSelectedBorderColor = a.getColor(R.styleable.EnhancedTextView_tokenSelectedBorderColor, tokenBorderColor);
-                tokenTextColor = a.getColor(R.styleable.EnhancedTextView_tokenTextColor, -1);
-                tokenSelectedTextColor = a.getColor(R.styleable.EnhancedTextView_tokenSelectedTextColor, tokenTextColor);
-                tokenVerticalPadding = a.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenVerticalPadding, 0);
-                tokenHorizontalPadding = a.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenHorizontalPadding, 0);
-                tokenBorderRadius = a.getDimensionPixelSize(R.styleable.EnhancedTextView_tokenBorderRadius, 0);
+                this.setBackgroundColor(style.textBackgroundColor);
             }
+        }
 
-            a.recycle();
+        Shadow innerShadow = style.innerShadow;
+        if (innerShadow != null) {
+            this.addInnerShadow(innerShadow.r, innerShadow.dx, innerShadow.dy, innerShadow.color);
         }
+
+        Shadow outerShadow = style.outerShadow;
+        if (outerShadow != null) {
+            this.addOuterShadow(outerShadow.r, outerShadow.dx, outerShadow.dy, outerShadow.color);
+        }
+
+        if (style.hasStroke) {
+            this.setStroke(style.strokeWidth, style.strokeColor, style.strokeJoin, style.strokeMiter);
+        }
+        effectCacheEnabled = style.effectCache;
+        tokenChipCacheEnabled = style.tokenChipCache;
+        consumeLeftDrawableTouch = style.consumeLeftDrawableTouch != null
+                ? style.consumeLeftDrawableTouch : consumeLeftDrawableTouchByDefault();
+        consumeRightDrawableTouch = style.consumeRightDrawableTouch != null
+                ? style.consumeRightDrawableTouch : consumeRightDrawableTouchByDefault();
     }
 
     public void setStroke(float width, int color, Join join, float miter) {
@@ -332,6 +387,7 @@ public class EnhancedTextView extends TextView {
         strokeColor = color;
         strokeJoin = join;
         strokeMiter = miter;
+        effectGeneration++;
     }
 
     public void setStroke(float width, int color) {
@@ -342,28 +398,79 @@ public class EnhancedTextView extends TextView {
         if (r == 0) {
             r = 0.0001f;
         }
+        if (outerShadows == null) {
+            outerShadows = new ArrayList<Shadow>(1);
+        }
         outerShadows.add(new Shadow(r, dx, dy, color));
+        effectGeneration++;
     }
 
     public void addInnerShadow(float r, float dx, float dy, int color) {
         if (r == 0) {
             r = 0.0001f;
         }
+        if (innerShadows == null) {
+            innerShadows = new ArrayList<Shadow>(1);
+            innerShadowFilters = new ArrayList<BlurMaskFilter>(1);
+        }
         innerShadows.add(new Shadow(r, dx, dy, color));
         innerShadowFilters.add(new BlurMaskFilter(r, BlurMaskFilter.Blur.NORMAL));
+        effectGeneration++;
     }
 
     public void clearInnerShadows() {
-        innerShadows.clear();
-        innerShadowFilters.clear();
+        if (innerShadows != null) {
+            innerShadows.clear();
+            innerShadowFilters.clear();
+            effectGeneration++;
+        }
     }
 
     public void clearOuterShadows() {
-        outerShadows.clear();
+        if (outerShadows != null) {
+            outerShadows.clear();
+            effectGeneration++;
+        }
     }
 
     public void setForegroundDrawable(Drawable d) {
         this.foregroundDrawable = d;
+        effectGeneration++;
+    }
+
+    /**
+     * When enabled, the output of the shadow, stroke and foreground passes is rasterized once
+     * into a cached layer and blitted on later frames until the text, layout, paint or one of
+     * the effects changes. Trades one view-sized bitmap for skipping the extra text draws.
+     */
+    public void setEffectCacheEnabled(boolean enabled) {
+        if (effectCacheEnabled != enabled) {
+            effectCacheEnabled = enabled;
+            if (!enabled && effectLayer != null) {
+                effectLayer.release();
+                effectLayer = null;
+            }
+            invalidate();
+        }
+    }
+
+    public boolean isEffectCacheEnabled() {
+        return effectCacheEnabled;
+    }
+
+    private boolean hasTextEffects() {
+        return hasOuterShadows()
+                || hasInnerShadows()
+                || strokeColor != null
+                || foregroundDrawable instanceof BitmapDrawable;
+    }
+
+    private boolean hasOuterShadows() {
+        return outerShadows != null && outerShadows.size() > 0;
+    }
+
+    private boolean hasInnerShadows() {
+        return innerShadows != null && innerShadows.size() > 0;
     }
 
     public Drawable getForeground() {
@@ -389,9 +496,11 @@ public class EnhancedTextView extends TextView {
         }
         float mSpacingAddFloat = 0;
         try {
-            Field mSpacingAdd = tv.getClass().getDeclaredField("mSpacingAdd");
-            mSpacingAdd.setAccessible(true);
-            mSpacingAddFloat = mSpacingAdd.getFloat(this);
+            if (spacingAddField == null) {
+                spacingAddField = TextView.class.getDeclaredField("mSpacingAdd");
+                spacingAddField.setAccessible(true);
+            }
+            mSpacingAddFloat = spacingAddField.getFloat(this);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (IllegalAccessException e) {
@@ -411,84 +520,298 @@ public class EnhancedTextView extends TextView {
     @Override
     public void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        freeze();
-        CharSequence restoreText = this.getText();
-        Drawable[] restoreDrawables = this.getCompoundDrawables();
-        ColorStateList restoreColor = this.getTextColors();
+        final Layout layout = getEffectLayout();
+
+        if (layout != null && hasTextEffects()) {
+            if (effectCacheEnabled && getWidth() > 0 && getHeight() > 0) {
+                if (effectLayer == null) {
+                    effectLayer = new EffectLayer();
+                }
+                watchEffectSpans();
+                if (!effectLayer.isValid(this, effectGeneration)) {
+                    drawTextEffects(effectLayer.begin(this), layout);
+                    effectLayer.end(this, effectGeneration);
+                }
+                effectLayer.draw(canvas);
+            } else {
+                drawTextEffects(canvas, layout);
+            }
+        }
 
-        this.setCompoundDrawables(null, null, null, null);
+        if (isDrawableSticky && originalDrawables != null) {
+            ensureStickyGeometry();
+            final int vspace = getHeight() - getCompoundPaddingBottom() - getCompoundPaddingTop();
+            final int hspace = getWidth() - getCompoundPaddingRight() - getCompoundPaddingLeft();
+            for (int i = 0; i < originalDrawables.length; i++) {
+                if (originalDrawables[i] != null) {
+                    getDrawableBounds(i, reusableRect, vspace, hspace);
+                    originalDrawables[i].setBounds(reusableRect);
+                    originalDrawables[i].draw(canvas);
+                }
+            }
+        }
+    }
 
-        for (Shadow shadow : outerShadows) {
-            this.setShadowLayer(shadow.r, shadow.dx, shadow.dy, shadow.color);
-            super.onDraw(canvas); //Draws regular shadow on top of the text if shadows are set
+    /**
+     * @return the layout the effect passes draw: the text layout, or the hint layout when the
+     * text is empty, or null if there is nothing to draw
+     */
+    private Layout getEffectLayout() {
+        final Layout layout = getLayout();
+        if (layout == null || length() > 0) {
+            return layout;
+        }
+        final CharSequence hint = getHint();
+        if (TextUtils.isEmpty(hint)) {
+            return null;
         }
-        this.setShadowLayer(0, 0, 0, 0);
-        this.setTextColor(restoreColor);//And draw colored text on top
+        final TextPaint paint = getPaint();
+        if (hintEffectLayout == null
+                || hintEffectLayoutHint != hint
+                || hintEffectLayout.getWidth() != layout.getWidth()
+                || hintEffectLayoutTextSize != paint.getTextSize()
+                || hintEffectLayoutTypeface != paint.getTypeface()) {
+            hintEffectLayout = new StaticLayout(hint, paint, layout.getWidth(), layout.getAlignment(),
+                    layout.getSpacingMultiplier(), layout.getSpacingAdd(), getHintIncludeFontPadding());
+            hintEffectLayoutHint = hint;
+            hintEffectLayoutTextSize = paint.getTextSize();
+            hintEffectLayoutTypeface = paint.getTypeface();
+            effectGeneration++;
+        }
+        return hintEffectLayout;
+    }
 
-        if (this.foregroundDrawable != null && this.foregroundDrawable instanceof BitmapDrawable) {
-            generateTempCanvas();
-            super.onDraw(tempCanvas);
+    /**
+     * @return the top of {@code layout} in the view, like {@link #getTotalPaddingTop()} for the
+     * text layout. The hint is positioned by TextView from the height of the hint layout.
+     */
+    int getEffectLayoutTop(Layout layout) {
+        if (layout == getLayout()) {
+            return getTotalPaddingTop();
+        }
+        final int top = getExtendedPaddingTop();
+        final int gravity = getGravity() & Gravity.VERTICAL_GRAVITY_MASK;
+        if (gravity == Gravity.TOP) {
+            return top;
+        }
+        final int boxHeight = getMeasuredHeight() - top - getExtendedPaddingBottom();
+        final int layoutHeight = layout.getHeight();
+        if (layoutHeight >= boxHeight) {
+            return top;
+        }
+        return top + (gravity == Gravity.BOTTOM ? boxHeight - layoutHeight : (boxHeight - layoutHeight) >> 1);
+    }
+
+    @SuppressLint("NewApi")
+    private boolean getHintIncludeFontPadding() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN || getIncludeFontPadding();
+    }
+
+    /**
+     * Makes sure span changes on the current text invalidate the cached effect layer: they change
+     * what the passes draw without changing the characters or the layout instance.
+     */
+    private void watchEffectSpans() {
+        final CharSequence text = getText();
+        if (!(text instanceof Spannable)) {
+            return;
+        }
+        if (effectSpanWatcher == null) {
+            effectSpanWatcher = new EffectSpanWatcher();
+        }
+        if (effectSpanWatcher.text != text) {
+            if (effectSpanWatcher.text != null) {
+                effectSpanWatcher.text.removeSpan(effectSpanWatcher);
+            }
+            effectSpanWatcher.text = (Spannable) text;
+            effectSpanWatcher.text.setSpan(effectSpanWatcher, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        }
+    }
+
+    private class EffectSpanWatcher implements SpanWatcher, NoCopySpan {
+        Spannable text;
+
+        private void onSpanUpdated(Object what) {
+            // the selection and other watchers do not change the text pixels
+            if (what != Selection.SELECTION_START && what != Selection.SELECTION_END
+                    && !(what instanceof SpanWatcher)) {
+                effectGeneration++;
+            }
+        }
+
+        @Override
+        public void onSpanAdded(Spannable text, Object what, int start, int end) {
+            onSpanUpdated(what);
+        }
+
+        @Override
+        public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+            onSpanUpdated(what);
+        }
+
+        @Override
+        public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+            onSpanUpdated(what);
+        }
+    }
+
+    /**
+     * Draws the outer shadow, foreground, stroke and inner shadow passes on top of the regular
+     * text, straight from {@code layout}.
+     */
+    private void drawTextEffects(Canvas canvas, Layout layout) {
+        if (effectRenderer == null) {
+            effectRenderer = new TextEffectRenderer(this);
+        }
+        final TextEffectRenderer renderer = effectRenderer;
+
+        if (hasOuterShadows()) {
+            for (Shadow shadow : outerShadows) {
+                TextPaint paint = renderer.obtainPassPaint(layout);
+                paint.setShadowLayer(shadow.r, shadow.dx, shadow.dy, shadow.color);
+                renderer.drawPass(canvas, layout, paint, shadow); //Draws regular shadow on top of the text if shadows are set
+            }
+        }
+
+        final OffscreenBufferPool pool = OffscreenBufferPool.getDefault();
+        final boolean hasBitmapForeground = this.foregroundDrawable instanceof BitmapDrawable;
+        if (effectBounds == null) {
+            effectBounds = new Rect();
+        }
+        // the offscreen passes are skipped when nothing of the text is visible, the stroke is not
+        final boolean hasEffectBounds = (hasBitmapForeground || hasInnerShadows())
+                && computeEffectBounds(layout, effectBounds);
+
+        if (hasBitmapForeground && hasEffectBounds) {
+            final Rect bounds = effectBounds;
+            OffscreenBufferPool.Buffer buffer = pool.acquire(bounds.width(), bounds.height());
+            Canvas tempCanvas = buffer.getCanvas();
+            final int saveCount = tempCanvas.save();
+            tempCanvas.translate(-bounds.left, -bounds.top);
+            renderer.drawPass(tempCanvas, layout, renderer.obtainPassPaint(layout), null);
             Paint paint = ((BitmapDrawable) this.foregroundDrawable).getPaint();
             paint.setXfermode(SRC_ATOP_XFER_MODE);
+            if (reusableRect == null) {
+                reusableRect = new Rect();
+            }
             canvas.getClipBounds(reusableRect);
             this.foregroundDrawable.setBounds(reusableRect);
             this.foregroundDrawable.draw(tempCanvas);
-            canvas.drawBitmap(tempBitmap, 0, 0, null);
-            tempCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            tempCanvas.restoreToCount(saveCount);
+            buffer.drawTo(canvas, bounds.left, bounds.top);
+            pool.release(buffer);
         }
 
         if (strokeColor != null) {
-            TextPaint paint = this.getPaint();
+            TextPaint paint = renderer.obtainPassPaint(layout);
             paint.setStyle(Paint.Style.STROKE);
             paint.setStrokeJoin(strokeJoin);
             paint.setStrokeMiter(strokeMiter);
-            this.setTextColor(strokeColor);
             paint.setStrokeWidth(strokeWidth);
-            super.onDraw(canvas);
-            paint.setStyle(Paint.Style.FILL);
-            this.setTextColor(restoreColor);
-        }
-        if (innerShadows.size() > 0 && getWidth() > 0 && getHeight() > 0) {
-            generateTempCanvas();
-            TextPaint paint = this.getPaint();
-            for (int i = 0; i < innerShadows.size(); i++) {
-                Shadow shadow = innerShadows.get(i);
-                this.setTextColor(shadow.color);
-                super.onDraw(tempCanvas);
-                this.setTextColor(0xFF000000);
-                paint.setXfermode(DST_OUT_XFER_MODE);
-                paint.setMaskFilter(innerShadowFilters.get(i));
-
-                tempCanvas.save();
-                tempCanvas.translate(shadow.dx, shadow.dy);
-                super.onDraw(tempCanvas);
-                tempCanvas.restore();
-                canvas.drawBitmap(tempBitmap, 0, 0, null);
-                tempCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-
-                paint.setXfermode(null);
-                paint.setMaskFilter(null);
-                this.setTextColor(restoreColor);
-                this.setShadowLayer(0, 0, 0, 0);
-            }
+            paint.setColor(strokeColor);
+            renderer.drawPass(canvas, layout, paint, null);
+        }
+        if (hasInnerShadows() && hasEffectBounds) {
+            drawInnerShadows(canvas, layout, pool, effectBounds);
         }
+    }
 
-        if (isDrawableSticky && originalDrawables != null) {
-            textPaint.getTextBounds(restoreText.toString(), 0, restoreText.length(), textBounds);
-            final int vspace = getHeight() - getCompoundPaddingBottom() - getCompoundPaddingTop();
-            final int hspace = getWidth() - getCompoundPaddingRight() - getCompoundPaddingLeft();
-            for (int i = 0; i < originalDrawables.length; i++) {
-                if (originalDrawables[i] != null) {
-                    getDrawableBounds(i, reusableRect, vspace, hspace);
-                    originalDrawables[i].setBounds(reusableRect);
-                    originalDrawables[i].draw(canvas);
-                }
+    /**
+     * Computes the area the offscreen effect passes need: the ink bounds of the laid out text,
+     * grown by the largest inner shadow radius and offset and by the stroke, and limited to the
+     * visible part of the view grown by the same margin: the shadows are blurred from the mask,
+     * so the mask must extend past the visible edges for the shadows along them to be right.
+     * Coordinates are those of the canvas passed to onDraw.
+     *
+     * @return false if the resulting area is empty
+     */
+    private boolean computeEffectBounds(Layout layout, Rect out) {
+        final int lineCount = layout.getLineCount();
+        if (lineCount == 0) {
+            return false;
+        }
+        float left = Float.MAX_VALUE;
+        float right = -Float.MAX_VALUE;
+        for (int i = 0; i < lineCount; i++) {
+            left = Math.min(left, layout.getLineLeft(i));
+            right = Math.max(right, layout.getLineRight(i));
+        }
+
+        float margin = 1 + (strokeColor != null ? strokeWidth : 0);
+        for (int i = 0, count = hasInnerShadows() ? innerShadows.size() : 0; i < count; i++) {
+            Shadow shadow = innerShadows.get(i);
+            margin = Math.max(margin, shadow.r + Math.max(Math.abs(shadow.dx), Math.abs(shadow.dy)));
+        }
+
+        final int textLeft = getCompoundPaddingLeft();
+        final int textTop = getEffectLayoutTop(layout);
+        out.set((int) FloatMath.floor(textLeft + left - margin),
+                (int) FloatMath.floor(textTop - margin),
+                (int) FloatMath.ceil(textLeft + right + margin),
+                (int) FloatMath.ceil(textTop + layout.getHeight() + margin));
+        final int visibleMargin = (int) FloatMath.ceil(margin);
+        return out.intersect(getScrollX() - visibleMargin, getScrollY() - visibleMargin,
+                getScrollX() + getWidth() + visibleMargin, getScrollY() + getHeight() + visibleMargin);
+    }
+
+    /**
+     * Renders the text once into an alpha mask, builds every inner shadow from that mask into a
+     * single offscreen layer and composites the layer onto {@code canvas} once, so the cost on
+     * the real canvas does not grow with the number of shadows.
+     */
+    private void drawInnerShadows(Canvas canvas, Layout layout, OffscreenBufferPool pool, Rect bounds) {
+        final int width = bounds.width();
+        final int height = bounds.height();
+        if (innerShadowPaint == null) {
+            innerShadowPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+            innerShadowErasePaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+            innerShadowErasePaint.setXfermode(DST_OUT_XFER_MODE);
+        }
+
+        // all buffers share the origin of bounds, so they line up without further translation
+        OffscreenBufferPool.Buffer mask = pool.acquireMask(width, height);
+        Canvas maskCanvas = mask.getCanvas();
+        final int saveCount = maskCanvas.save();
+        maskCanvas.translate(-bounds.left, -bounds.top);
+        TextPaint maskPaint = effectRenderer.obtainPassPaint(layout);
+        maskPaint.setColor(0xFF000000);
+        effectRenderer.drawPass(maskCanvas, layout, maskPaint, null);
+        maskCanvas.restoreToCount(saveCount);
+        Bitmap maskBitmap = mask.getBitmap();
+
+        OffscreenBufferPool.Buffer layer = pool.acquire(width, height);
+        final int count = innerShadows.size();
+        // a single shadow can be built directly in the layer
+        OffscreenBufferPool.Buffer scratch = count > 1 ? pool.acquire(width, height) : layer;
+        Canvas scratchCanvas = scratch.getCanvas();
+        for (int i = 0; i < count; i++) {
+            Shadow shadow = innerShadows.get(i);
+            innerShadowPaint.setColor(shadow.color);
+            scratchCanvas.drawBitmap(maskBitmap, 0, 0, innerShadowPaint);
+            innerShadowErasePaint.setMaskFilter(innerShadowFilters.get(i));
+            scratchCanvas.drawBitmap(maskBitmap, shadow.dx, shadow.dy, innerShadowErasePaint);
+            if (scratch != layer) {
+                scratch.drawTo(layer.getCanvas(), 0, 0);
+                scratch.clear();
             }
         }
-        if (restoreDrawables != null) {
-            this.setCompoundDrawables(restoreDrawables[0], restoreDrawables[1], restoreDrawables[2], restoreDrawables[3]);
+        innerShadowErasePaint.setMaskFilter(null);
+        layer.drawTo(canvas, bounds.left, bounds.top);
+
+        if (scratch != layer) {
+            pool.release(scratch);
+        }
+        pool.release(layer);
+        pool.release(mask);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (effectLayer != null) {
+            effectLayer.release();
+            effectLayer = null;
         }
-        unfreeze();
     }
 
     @Override
@@ -504,28 +827,16 @@ public class EnhancedTextView extends TextView {
         }
     }
 
-    private void generateTempCanvas() {
-        String key = String.format(Locale.getDefault(), "%dx%d", getWidth(), getHeight());
-        Pair<Canvas, Bitmap> stored = canvasStore.get(key);
-        if (stored != null) {
-            tempCanvas = stored.first;
-            tempBitmap = stored.second;
-        } else {
-            tempCanvas = new Canvas();
-            tempBitmap = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
-            tempCanvas.setBitmap(tempBitmap);
-            canvasStore.put(key, new Pair<Canvas, Bitmap>(tempCanvas, tempBitmap));
-        }
-    }
-
-    // Keep these things locked while onDraw in processing
+    // Keep these things locked while the view state is being changed temporarily. onDraw no
+    // longer needs this: effect passes are drawn from the layout without touching the view.
     public void freeze() {
-        lockedCompoundPadding = new int[]{
-                getCompoundPaddingLeft(),
-                getCompoundPaddingRight(),
-                getCompoundPaddingTop(),
-                getCompoundPaddingBottom()
-        };
+        if (lockedCompoundPadding == null) {
+            lockedCompoundPadding = new int[4];
+        }
+        lockedCompoundPadding[0] = getCompoundPaddingLeft();
+        lockedCompoundPadding[1] = getCompoundPaddingRight();
+        lockedCompoundPadding[2] = getCompoundPaddingTop();
+        lockedCompoundPadding[3] = getCompoundPaddingBottom();
         frozen = true;
     }
 
@@ -608,12 +919,14 @@ public class EnhancedTextView extends TextView {
         if (dr == null) {
             return;
         }
+        if (isDrawableSticky) {
+            ensureStickyGeometry();
+        }
         switch (which) {
             case LEFT:
                 if (isDrawableSticky) {
-                    // TODO: This doesn't work
-                    rect.left = getScrollX() + (getWidth() - dr.getIntrinsicWidth()
-                            - getCompoundDrawablePadding() - getMaxLineWidth()) / 2;
+                    rect.left = getScrollX() + getCompoundPaddingLeft() + (int) FloatMath.floor(stickyLineLeft)
+                            - getCompoundDrawablePadding() - dr.getIntrinsicWidth();
                 } else {
                     rect.left = getPaddingLeft();
                 }
@@ -622,12 +935,13 @@ public class EnhancedTextView extends TextView {
                 break;
             case RIGHT:
                 if (isDrawableSticky) {
-                    // TODO: This doesn't work
-                    rect.left = getScrollX() + (getWidth() + getCompoundDrawablePadding()
-                            + getMaxLineWidth() - dr.getIntrinsicWidth()) / 2;
-                } else {
-                    rect.left = getWidth() - getPaddingRight() - dr.getIntrinsicWidth();
+                    rect.left = getScrollX() + getCompoundPaddingLeft() + (int) FloatMath.ceil(stickyLineRight)
+                            + getCompoundDrawablePadding();
+                    rect.top = getScrollY() + getCompoundPaddingTop()
+                            + (vspace - dr.getIntrinsicHeight()) / 2;
+                    break;
                 }
+                rect.left = getWidth() - getPaddingRight() - dr.getIntrinsicWidth();
                 rect.top = getScrollY();
                 rect.right = getWidth();
                 rect.bottom = rect.top + getHeight();
@@ -658,21 +972,54 @@ public class EnhancedTextView extends TextView {
         rect.bottom = rect.top + dr.getIntrinsicHeight();
     }
 
-    private int getMaxLineWidth() {
-        Layout layout = getLayout();
-        if (layout != null) {
-            int lines = layout.getLineCount();
-            if (lines > 1) {
-                float maxWidth = 0f;
-                for (int i = 0; i < lines; i++) {
-                    if (layout.getLineWidth(i) > maxWidth) {
-                        maxWidth = layout.getLineWidth(i);
-                    }
-                }
-                return (int) FloatMath.ceil(maxWidth);
+    @Override
+    protected void onTextChanged(CharSequence text, int start, int lengthBefore, int lengthAfter) {
+        super.onTextChanged(text, start, lengthBefore, lengthAfter);
+        stickyGeometryValid = false;
+        if (isDrawableSticky) {
+            drawableHitRectsValid = false;
+        }
+    }
+
+    /**
+     * Measures the text bounds and the horizontal extent of the laid out lines used to position
+     * sticky drawables. The result is kept until the text or the layout changes, so drawing and
+     * hit testing only read the stored values.
+     */
+    private void ensureStickyGeometry() {
+        final Layout layout = getLayout();
+        if (stickyGeometryValid && layout == stickyGeometryLayout
+                && (layout == null || layout.getWidth() == stickyGeometryLayoutWidth)) {
+            return;
+        }
+
+        final CharSequence text = getText();
+        final int length = text.length();
+        if (stickyTextBuffer == null || stickyTextBuffer.length < length) {
+            stickyTextBuffer = new char[length];
+        }
+        TextUtils.getChars(text, 0, length, stickyTextBuffer, 0);
+        textPaint.setTextSize(getTextSize());
+        textPaint.setTypeface(getTypeface());
+        textPaint.getTextBounds(stickyTextBuffer, 0, length, textBounds);
+
+        if (layout != null && layout.getLineCount() > 0) {
+            float left = Float.MAX_VALUE;
+            float right = -Float.MAX_VALUE;
+            for (int i = 0, lines = layout.getLineCount(); i < lines; i++) {
+                left = Math.min(left, layout.getLineLeft(i));
+                right = Math.max(right, layout.getLineRight(i));
             }
+            stickyLineLeft = left;
+            stickyLineRight = right;
+        } else {
+            stickyLineLeft = 0;
+            stickyLineRight = textBounds.width();
         }
-        return textBounds.width();
+
+        stickyGeometryLayout = layout;
+        stickyGeometryLayoutWidth = layout != null ? layout.getWidth() : 0;
+        stickyGeometryValid = true;
     }
 
     public static class Shadow {
@@ -691,39 +1038,397 @@ public class EnhancedTextView extends TextView {
 
 
     public int getTokenBackgroundColor() {
-        return tokenBackgroundColor;
+        return style.tokenBackgroundColor;
     }
 
     public int getTokenBorderColor() {
-        return tokenBorderColor;
+        return style.tokenBorderColor;
     }
 
     public int getTokenTextColor() {
-        return tokenTextColor;
+        return style.tokenTextColor;
     }
 
     public int getTokenVerticalPadding() {
-        return tokenVerticalPadding;
+        return style.tokenVerticalPadding;
     }
 
     public int getTokenHorizontalPadding() {
-        return tokenHorizontalPadding;
+        return style.tokenHorizontalPadding;
     }
 
     public int getTokenBorderRadius() {
-        return tokenBorderRadius;
+        return style.tokenBorderRadius;
+    }
+
+    TokenStyle getTokenStyle() {
+        return style.getTokenStyle();
+    }
+
+    /**
+     * When enabled, token spans are rasterized once into the shared {@link TokenChipCache} and
+     * drawn as a single bitmap on later frames.
+     */
+    public void setTokenChipCacheEnabled(boolean enabled) {
+        if (tokenChipCacheEnabled != enabled) {
+            tokenChipCacheEnabled = enabled;
+            invalidate();
+        }
+    }
+
+    public boolean isTokenChipCacheEnabled() {
+        return tokenChipCacheEnabled;
     }
 
     public int getTokenSelectedTextColor() {
-        return tokenSelectedTextColor;
+        return style.tokenSelectedTextColor;
     }
 
     public int getTokenSelectedBackgroundColor() {
-        return tokenSelectedBackgroundColor;
+        return style.tokenSelectedBackgroundColor;
     }
 
     public int getTokenSelectedBorderColor() {
-        return tokenSelectedBorderColor;
+        return style.tokenSelectedBorderColor;
+    }
+
+    /**
+     * Replaces the text with one token per value, separated by a space.
+     *
+     * @see #setTokens(List, CharSequence, TokenBackgroundSpan.TextDisplayTransformation)
+     */
+    public <T> long setTokens(List<T> tokenValues) {
+        return setTokens(tokenValues, " ", TokenBackgroundSpan.NO_TRANSFORM);
+    }
+
+    /**
+     * Replaces the text with one {@link TokenBackgroundSpan} per value. The text and all of its
+     * spans are built off-screen and committed with a single {@link #setText(CharSequence)}, so
+     * the field is laid out and redrawn once however many tokens there are, instead of once per
+     * inserted token.
+     *
+     * @param tokenValues    the token values, each written with its {@code toString()}; values
+     *                       whose text is empty are skipped
+     * @param separator      text written after every token, may be null
+     * @param transformation display transformation applied to every token, may be null
+     * @return the time spent building and committing the tokens, in nanoseconds
+     */
+    public <T> long setTokens(List<T> tokenValues, CharSequence separator,
+                              TokenBackgroundSpan.TextDisplayTransformation transformation) {
+        final long start = System.nanoTime();
+        setText(getTokenManager().buildTokenText(tokenValues, separator, transformation));
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @see #updateTokens(List, CharSequence, TokenBackgroundSpan.TextDisplayTransformation)
+     */
+    public <T> long updateTokens(List<T> tokenValues) {
+        return updateTokens(tokenValues, " ", TokenBackgroundSpan.NO_TRANSFORM);
+    }
+
+    /**
+     * Replaces the tokens with {@code tokenValues} by diffing them against the current tokens.
+     * Unlike {@link #setTokens(List, CharSequence, TokenBackgroundSpan.TextDisplayTransformation)},
+     * the tokens before and after the changed ones are left alone and the tokens of values that
+     * are still present are moved rather than recreated, keeping their cached measurements and
+     * selected state. On an editable text only the lines of the changed range are laid out again.
+     * Any text between the changed tokens is rewritten with {@code separator}.
+     *
+     * @param transformation display transformation of the new tokens, may be null
+     * @return the time spent updating the tokens, in nanoseconds
+     */
+    public <T> long updateTokens(List<T> tokenValues, CharSequence separator,
+                                 TokenBackgroundSpan.TextDisplayTransformation transformation) {
+        final long start = System.nanoTime();
+        getTokenManager().updateTokens(tokenValues, separator, transformation);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Builds an immutable text of read-only tokens for a view that only displays them, like a
+     * list row. The tokens do not make any view watch its text or selection, and the returned
+     * text is set without being copied, so it can be kept with the item and set again on every
+     * bind: the tokens then reuse their measurements, even on another view of the same style.
+     *
+     * @param separator      text written after every token, may be null
+     * @param transformation display transformation applied to every token, may be null
+     * @see TokenBackgroundSpan#TokenBackgroundSpan(Object, EnhancedTextView, boolean)
+     */
+    public <T> Spanned buildReadOnlyTokenText(List<T> tokenValues, CharSequence separator,
+                                              TokenBackgroundSpan.TextDisplayTransformation transformation) {
+        return new SpannedString(TokenManager.buildTokenText(this, tokenValues, separator, transformation, true));
+    }
+
+    /**
+     * Sets a token text built, usually off the UI thread, with
+     * {@link PrecomputedTokenText#create(List, PrecomputedTokenText.Params)}. The layout reuses
+     * the pre-measured token widths, as long as the text paint did not change in the meantime;
+     * the lines are still broken on the UI thread.
+     *
+     * @return the time spent committing the text, in nanoseconds
+     * @throws IllegalArgumentException if the text was precomputed for another view
+     */
+    public long setPrecomputedTokenText(PrecomputedTokenText text) {
+        if (text.getParams().container != this) {
+            throw new IllegalArgumentException("PrecomputedTokenText was created for another view");
+        }
+        final long start = System.nanoTime();
+        setText(text.getText());
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Collapses the tokens while the view is not focused: only the tokens fitting in
+     * {@code lines} lines are laid out, the rest are replaced by a single summary chip. The
+     * tokens are expanded again when the view gains focus.
+     *
+     * @param lines the number of lines to show when collapsed, 0 to never collapse
+     */
+    public void setTokenCollapseLines(int lines) {
+        if (tokenCollapseLines != lines) {
+            tokenCollapseLines = lines;
+            updateTokenCollapse();
+        }
+    }
+
+    public int getTokenCollapseLines() {
+        return tokenCollapseLines;
+    }
+
+    /**
+     * @param format label of the summary chip of collapsed tokens, receiving the number of
+     *               hidden tokens; defaults to {@code "+%d more"}
+     */
+    public void setTokenSummaryFormat(String format) {
+        tokenSummaryFormat = format;
+        updateTokenCollapse();
+    }
+
+    private void updateTokenCollapse() {
+        if (tokenCollapseLines > 0 && !isFocused()) {
+            getTokenManager().collapse(getWidth() - getCompoundPaddingLeft() - getCompoundPaddingRight(),
+                    tokenCollapseLines, tokenSummaryFormat);
+        } else if (tokenManager != null) {
+            tokenManager.expand();
+        }
+    }
+
+    @Override
+    protected void onFocusChanged(boolean focused, int direction, Rect previouslyFocusedRect) {
+        super.onFocusChanged(focused, direction, previouslyFocusedRect);
+        if (tokenCollapseLines > 0) {
+            updateTokenCollapse();
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (tokenCollapseLines > 0 && w != oldw) {
+            // changing spans during layout would request another layout from within this one
+            if (tokenCollapseUpdate == null) {
+                tokenCollapseUpdate = new Runnable() {
+                    @Override
+                    public void run() {
+                        updateTokenCollapse();
+                    }
+                };
+            }
+            removeCallbacks(tokenCollapseUpdate);
+            post(tokenCollapseUpdate);
+        }
+    }
+
+    /**
+     * @return the manager of the token spans of this view, registered as a text watcher the
+     * first time it is requested
+     */
+    TokenManager getTokenManager() {
+        if (tokenManager == null) {
+            tokenManager = new TokenManager(this);
+            addTextChangedListener(tokenManager);
+        }
+        return tokenManager;
+    }
+
+    /**
+     * Invalidates the chip of {@code token} only, from the layout line and horizontal offsets of
+     * its span, instead of the whole view. With text effects, whose passes draw the chips too,
+     * the effects are invalidated along with the whole view.
+     */
+    void invalidateToken(TokenBackgroundSpan token) {
+        final Layout layout = getLayout();
+        final CharSequence text = getText();
+        if (layout == null || !(text instanceof Spanned)) {
+            return;
+        }
+        if (hasTextEffects()) {
+            effectGeneration++;
+            invalidate();
+            return;
+        }
+
+        final Spanned spanned = (Spanned) text;
+        final int start = spanned.getSpanStart(token);
+        final int end = spanned.getSpanEnd(token);
+        if (start < 0 || end < 0) {
+            return;
+        }
+        final int firstLine = layout.getLineForOffset(start);
+        final int lastLine = layout.getLineForOffset(Math.max(start, end - 1));
+        float left;
+        float right;
+        if (firstLine == lastLine) {
+            final float startX = layout.getPrimaryHorizontal(start);
+            // the offset at the end of a line maps to the start of the next one
+            final float endX = end < layout.getLineEnd(firstLine)
+                    ? layout.getPrimaryHorizontal(end) : layout.getLineRight(firstLine);
+            left = Math.min(startX, endX);
+            right = Math.max(startX, endX);
+        } else {
+            left = 0;
+            right = layout.getWidth();
+        }
+
+        // same geometry as TokenBackgroundSpan: the chip reaches from the line top to the font
+        // bottom below the baseline, outset by the vertical padding and the stroke
+        getPaint().getFontMetrics(tokenFontMetrics);
+        final int belowBaseline = (int) tokenFontMetrics.bottom;
+        final float outset = getTokenStyle().paddingVertical + TokenStyle.STROKE_WIDTH;
+        final int textLeft = getCompoundPaddingLeft();
+        final int textTop = getTotalPaddingTop();
+        invalidate((int) FloatMath.floor(textLeft + left - TokenStyle.STROKE_WIDTH),
+                (int) FloatMath.floor(textTop + layout.getLineTop(firstLine) - outset),
+                (int) FloatMath.ceil(textLeft + right + TokenStyle.STROKE_WIDTH),
+                (int) FloatMath.ceil(textTop + layout.getLineBaseline(lastLine) + belowBaseline + outset));
+    }
+
+    /**
+     * Returns a stamp that changes every time the characters of the text change, so spans can
+     * validate what they computed from the text in constant time. The stamp is bumped before
+     * the edit is applied, i.e. before the layout reflows and measures the spans again.
+     */
+    int getTextGeneration() {
+        return getTokenManager().getTextGeneration();
+    }
+
+    /**
+     * @return the display text buffer shared by the token spans of this view
+     */
+    TokenDisplayText getTokenDisplayText() {
+        return getTokenManager().getDisplayText();
+    }
+
+    /**
+     * Finds the token of {@code value} in constant time, without scanning the text.
+     *
+     * @return a token holding a value equal to {@code value}, or null
+     */
+    public TokenBackgroundSpan<?> findToken(Object value) {
+        return getTokenManager().findToken(value);
+    }
+
+    /**
+     * @return an unmodifiable snapshot of the tokens of the text, in text order
+     */
+    public List<TokenBackgroundSpan<?>> getTokens() {
+        return Collections.unmodifiableList(getTokenManager().getTokens());
+    }
+
+    /**
+     * @see #removeToken(Object, CharSequence)
+     */
+    public boolean removeToken(Object value) {
+        return removeToken(value, " ");
+    }
+
+    /**
+     * Removes the token of {@code value} along with its text and the {@code separator} that
+     * follows it, if any.
+     *
+     * @param separator separator the tokens were set with, may be null
+     * @return false if there is no such token or the text is not editable
+     */
+    public boolean removeToken(Object value, CharSequence separator) {
+        return getTokenManager().removeToken(value, separator);
+    }
+
+    /**
+     * Saves the tokens along with the text they cover, as long as every token value can be
+     * written to a {@link Parcel} (null, {@link Parcelable} or {@link java.io.Serializable}).
+     * Only {@link TokenBackgroundSpan#COMMA_TRANSFORM} and
+     * {@link TokenBackgroundSpan#PERIOD_TRANSFORM} are restored, other transformations are
+     * dropped.
+     */
+    @Override
+    public Parcelable onSaveInstanceState() {
+        final Parcelable superState = super.onSaveInstanceState();
+        if (tokenManager == null) {
+            return superState;
+        }
+        final SavedState state = new SavedState(superState);
+        return tokenManager.saveTokens(state) ? state : superState;
+    }
+
+    @Override
+    public void onRestoreInstanceState(Parcelable state) {
+        if (!(state instanceof SavedState)) {
+            super.onRestoreInstanceState(state);
+            return;
+        }
+        final SavedState savedState = (SavedState) state;
+        super.onRestoreInstanceState(savedState.getSuperState());
+        getTokenManager().restoreTokens(savedState);
+    }
+
+    /**
+     * Token state of the view: the text, then the values and ranges of the tokens in flat
+     * arrays, then the selection.
+     */
+    static class SavedState extends BaseSavedState {
+        String text;
+        // start, end and transformation of every token
+        int[] tokenRanges;
+        ArrayList<Object> tokenValues;
+        int selectionStart;
+        int selectionEnd;
+
+        SavedState(Parcelable superState) {
+            super(superState);
+        }
+
+        private SavedState(Parcel in) {
+            super(in);
+            text = in.readString();
+            tokenRanges = in.createIntArray();
+            tokenValues = new ArrayList<Object>();
+            in.readList(tokenValues, EnhancedTextView.class.getClassLoader());
+            selectionStart = in.readInt();
+            selectionEnd = in.readInt();
+        }
+
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+            out.writeString(text);
+            out.writeIntArray(tokenRanges);
+            out.writeList(tokenValues);
+            out.writeInt(selectionStart);
+            out.writeInt(selectionEnd);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
     }
 
     public void setOnSelectionChangeListener(OnSelectionChangeListener listener) {
@@ -733,6 +1438,9 @@ public class EnhancedTextView extends TextView {
     @Override
     protected void onSelectionChanged(int selStart, int selEnd) {
         super.onSelectionChanged(selStart, selEnd);
+        if (tokenManager != null) {
+            tokenManager.onSelectionChanged(selStart, selEnd);
+        }
         if (onSelectionChangedListener!= null) {
             onSelectionChangedListener.onSelectionChanged(this, selStart, selEnd);
         }
@@ -0,0 +1,262 @@
+package com.remind101.android.views;
+
+import android.annotation.SuppressLint;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.DisplayMetrics;
+
+import java.util.ArrayList;
+
+/**
+ * Pool of offscreen buffers used by the text effect passes. Buffers are kept in LRU
+ * order and the pool does not retain more than {@link #getMaxBytes()} worth of pixels, except
+ * for the most recently released buffer, which is always kept so that a view bigger than the
+ * budget does not allocate on every frame. Evicted buffers are recycled. A request
+ * is served by the smallest free buffer that is at least as large as the requested size, so a
+ * view shrinking (or a smaller view drawing after a bigger one) does not allocate.
+ * <p/>
+ * Lookups are a linear scan over int dimensions: no key objects are created per draw. The pool
+ * is meant to be used from the UI thread only.
+ */
+public class OffscreenBufferPool {
+
+    public static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static OffscreenBufferPool defaultPool;
+
+    // least recently used first
+    private final ArrayList<Buffer> buffers = new ArrayList<Buffer>();
+    private int maxBytes;
+    private int size;
+
+    private int hitCount;
+    private int missCount;
+    private int evictionCount;
+
+    public OffscreenBufferPool(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The default pool can hold what the inner shadow pass of a full screen view needs: a mask
+     * and two ARGB buffers of the display size.
+     */
+    public static OffscreenBufferPool getDefault() {
+        if (defaultPool == null) {
+            final DisplayMetrics metrics = Resources.getSystem().getDisplayMetrics();
+            final int screenPixels = metrics.widthPixels * metrics.heightPixels;
+            defaultPool = new OffscreenBufferPool(Math.max(DEFAULT_MAX_BYTES, screenPixels * (2 * 4 + 1)));
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Returns a cleared ARGB_8888 buffer of at least {@code width x height} pixels. The buffer
+     * must be handed back with {@link #release(Buffer)} once it has been drawn.
+     */
+    public Buffer acquire(int width, int height) {
+        return acquire(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Returns a cleared ALPHA_8 buffer of at least {@code width x height} pixels, suitable for
+     * holding a text mask that is later drawn with a color and mask filter.
+     */
+    public Buffer acquireMask(int width, int height) {
+        return acquire(width, height, Bitmap.Config.ALPHA_8);
+    }
+
+    public Buffer acquire(int width, int height, Bitmap.Config config) {
+        Buffer best = null;
+        for (int i = 0, count = buffers.size(); i < count; i++) {
+            Buffer buffer = buffers.get(i);
+            if (!buffer.inUse && buffer.config == config
+                    && buffer.capacityWidth >= width && buffer.capacityHeight >= height
+                    && (best == null || buffer.byteCount < best.byteCount)) {
+                best = buffer;
+            }
+        }
+
+        if (best != null) {
+            hitCount++;
+            buffers.remove(best);
+        } else {
+            missCount++;
+            final int byteCount = width * height * bytesPerPixel(config);
+            trimToSize(maxBytes - byteCount, null);
+            best = new Buffer(width, height, config);
+            size += best.byteCount;
+        }
+        buffers.add(best);
+        best.inUse = true;
+        best.setSize(width, height);
+        return best;
+    }
+
+    /**
+     * Clears the used area of the buffer and makes it available for the next request.
+     */
+    public void release(Buffer buffer) {
+        buffer.clear();
+        buffer.inUse = false;
+        trimToSize(maxBytes, buffer);
+    }
+
+    public void setMaxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes, null);
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the number of bytes currently held by pooled buffers
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Drops every buffer that is not currently in use.
+     */
+    public void evictAll() {
+        trimToSize(0, null);
+    }
+
+    public int hitCount() {
+        return hitCount;
+    }
+
+    public int missCount() {
+        return missCount;
+    }
+
+    public int evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @param keep a buffer to keep even if the pool is over {@code targetBytes}, may be null
+     */
+    private void trimToSize(int targetBytes, Buffer keep) {
+        for (int i = 0; i < buffers.size() && size > targetBytes; ) {
+            Buffer buffer = buffers.get(i);
+            if (buffer.inUse || buffer == keep) {
+                i++;
+                continue;
+            }
+            buffers.remove(i);
+            size -= buffer.byteCount;
+            evictionCount++;
+            buffer.recycle();
+        }
+    }
+
+    /**
+     * @return whether {@code canvas} records into a display list, which may reference the drawn
+     * bitmaps after the draw. There is no hardware acceleration before Honeycomb.
+     */
+    @SuppressLint("NewApi")
+    static boolean isHardwareAccelerated(Canvas canvas) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && canvas.isHardwareAccelerated();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case ARGB_8888:
+                return 4;
+            default:
+                return 2;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OffscreenBufferPool[maxBytes=" + maxBytes + ",size=" + size + ",hits=" + hitCount
+                + ",misses=" + missCount + ",evictions=" + evictionCount + "]";
+    }
+
+    public static class Buffer {
+        private final Bitmap bitmap;
+        private final Bitmap.Config config;
+        private final Canvas canvas;
+        private final int capacityWidth;
+        private final int capacityHeight;
+        private final int byteCount;
+        private final Rect src = new Rect();
+        private final Rect dst = new Rect();
+        private int width;
+        private int height;
+        private boolean inUse;
+        // a hardware display list may still reference the bitmap after it was drawn
+        private boolean drawnToHardware;
+
+        Buffer(int width, int height, Bitmap.Config config) {
+            this.capacityWidth = width;
+            this.capacityHeight = height;
+            this.config = config;
+            this.byteCount = width * height * bytesPerPixel(config);
+            this.bitmap = Bitmap.createBitmap(width, height, config);
+            this.canvas = new Canvas(bitmap);
+        }
+
+        private void setSize(int width, int height) {
+            this.width = width;
+            this.height = height;
+            src.set(0, 0, width, height);
+        }
+
+        public Canvas getCanvas() {
+            return canvas;
+        }
+
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Draws the requested area of the buffer onto {@code target} with its top left corner
+         * at {@code left, top}.
+         */
+        public void drawTo(Canvas target, int left, int top) {
+            dst.set(left, top, left + width, top + height);
+            target.drawBitmap(bitmap, src, dst, null);
+            if (isHardwareAccelerated(target)) {
+                drawnToHardware = true;
+            }
+        }
+
+        private void recycle() {
+            if (!drawnToHardware) {
+                bitmap.recycle();
+            }
+        }
+
+        /**
+         * Clears the requested area of the buffer.
+         */
+        public void clear() {
+            canvas.save();
+            canvas.clipRect(src);
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            canvas.restore();
+        }
+    }
+}
@@ -68,8 +68,7 @@ public class PageIndicatorView extends View {
 
             String typefaceName = a.getString(R.styleable.PageIndicatorView_font);
             if (typefaceName != null && !typefaceName.equals("") && !isInEditMode()) {
-                Typeface tf = Typeface.createFromAsset(getContext().getAssets(), String.format("fonts/%s.ttf", typefaceName));
-                numberPaint.setTypeface(tf);
+                numberPaint.setTypeface(TypefaceCache.get(getContext(), typefaceName));
             }
             shadowDrawable = a.getDrawable(R.styleable.PageIndicatorView_shadowDrawable);
             if (shadowDrawable != null && !shadowDrawable.isStateful()) {
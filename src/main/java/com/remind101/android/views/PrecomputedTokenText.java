@@ -0,0 +1,86 @@
+package com.remind101.android.views;
+
+import android.text.Spanned;
+import android.text.TextPaint;
+
+import java.util.List;
+
+/**
+ * Token field text with pre-measured tokens: the spans are created and the width of every token
+ * is measured ahead of time, typically on a background thread. Applying it with
+ * {@link EnhancedTextView#setPrecomputedTokenText(PrecomputedTokenText)} only copies the text
+ * into the view, and the layout reuses the token widths instead of measuring every token.
+ * <p/>
+ * Line breaking is not precomputed: the layout is still built on the UI thread when the view is
+ * measured, so what is saved is the token measurement only.
+ * <pre>
+ * final PrecomputedTokenText.Params params = new PrecomputedTokenText.Params(view, " ", null);
+ * executor.execute(new Runnable() {
+ *     public void run() {
+ *         final PrecomputedTokenText text = PrecomputedTokenText.create(recipients, params);
+ *         view.post(new Runnable() {
+ *             public void run() {
+ *                 view.setPrecomputedTokenText(text);
+ *             }
+ *         });
+ *     }
+ * });
+ * </pre>
+ */
+public final class PrecomputedTokenText {
+
+    /**
+     * Snapshot of what the tokens of a view are measured with. Must be created on the UI thread.
+     */
+    public static final class Params {
+        final EnhancedTextView container;
+        final TextPaint paint;
+        final CharSequence separator;
+        final TokenBackgroundSpan.TextDisplayTransformation transformation;
+
+        /**
+         * @param separator      text written after every token, may be null
+         * @param transformation display transformation applied to every token, may be null
+         */
+        public Params(EnhancedTextView container, CharSequence separator,
+                      TokenBackgroundSpan.TextDisplayTransformation transformation) {
+            this.container = container;
+            this.paint = new TextPaint(container.getPaint());
+            this.separator = separator;
+            this.transformation = transformation;
+            // resolve the lazily created token state now, the spans read it from the worker thread
+            container.getTokenManager();
+            container.getTokenStyle();
+        }
+    }
+
+    private final Spanned text;
+    private final Params params;
+
+    private PrecomputedTokenText(Spanned text, Params params) {
+        this.text = text;
+        this.params = params;
+    }
+
+    /**
+     * Builds the text of {@code tokenValues} and measures every token. Can be called from any
+     * thread.
+     */
+    public static <T> PrecomputedTokenText create(List<T> tokenValues, Params params) {
+        Spanned text = params.container.getTokenManager()
+                .buildTokenText(tokenValues, params.separator, params.transformation);
+        TokenBackgroundSpan[] tokens = text.getSpans(0, text.length(), TokenBackgroundSpan.class);
+        for (TokenBackgroundSpan token : tokens) {
+            token.precomputeWidth(params.paint, text, text.getSpanStart(token), text.getSpanEnd(token));
+        }
+        return new PrecomputedTokenText(text, params);
+    }
+
+    public Spanned getText() {
+        return text;
+    }
+
+    Params getParams() {
+        return params;
+    }
+}
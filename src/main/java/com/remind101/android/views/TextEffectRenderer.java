@@ -0,0 +1,90 @@
+package com.remind101.android.views;
+
+import android.graphics.Canvas;
+import android.text.Layout;
+import android.text.TextPaint;
+
+/**
+ * Draws the extra text passes of an {@link EnhancedTextView} (shadows, stroke, masks) straight
+ * from its {@link Layout}. Each pass is described by a dedicated {@link TextPaint}, so nothing
+ * on the view itself (text color, shadow layer, compound drawables) has to be changed while
+ * drawing, and no invalidation or relayout is triggered from inside onDraw.
+ */
+class TextEffectRenderer {
+
+    private final EnhancedTextView view;
+    private final TextPaint passPaint = new TextPaint();
+    private final TextPaint restorePaint = new TextPaint();
+    // effect passes are drawn on the UI thread only, one at a time
+    private static boolean drawingPass;
+
+    TextEffectRenderer(EnhancedTextView view) {
+        this.view = view;
+    }
+
+    /**
+     * @return true while a pass is drawing a layout, i.e. spans are drawn with a pass paint that
+     * may carry a shadow layer, which cannot be read back from the paint
+     */
+    static boolean isDrawingPass() {
+        return drawingPass;
+    }
+
+    /**
+     * @return the pass paint, reset to the paint the layout normally draws with, in the hint
+     * color if {@code layout} is not the text layout
+     */
+    TextPaint obtainPassPaint(Layout layout) {
+        passPaint.set(layout.getPaint());
+        passPaint.setColor(layout == view.getLayout() ? view.getCurrentTextColor() : view.getCurrentHintTextColor());
+        passPaint.drawableState = view.getDrawableState();
+        return passPaint;
+    }
+
+    /**
+     * Draws {@code layout} with {@code paint} onto {@code canvas}, positioned and clipped the
+     * same way {@link android.widget.TextView#onDraw(Canvas)} positions the regular text.
+     *
+     * @param shadow the shadow the paint carries, used to grow the clip so it is not cut off
+     */
+    void drawPass(Canvas canvas, Layout layout, TextPaint paint, EnhancedTextView.Shadow shadow) {
+        final int scrollX = view.getScrollX();
+        final int scrollY = view.getScrollY();
+        final int compoundPaddingLeft = view.getCompoundPaddingLeft();
+        final int compoundPaddingRight = view.getCompoundPaddingRight();
+        final int extendedPaddingTop = view.getExtendedPaddingTop();
+        final int extendedPaddingBottom = view.getExtendedPaddingBottom();
+        final int vspace = view.getHeight() - view.getCompoundPaddingBottom() - view.getCompoundPaddingTop();
+        final int maxScrollY = layout.getHeight() - vspace;
+
+        float clipLeft = compoundPaddingLeft + scrollX;
+        float clipTop = (scrollY == 0) ? 0 : extendedPaddingTop + scrollY;
+        float clipRight = view.getWidth() - compoundPaddingRight + scrollX;
+        float clipBottom = view.getHeight() + scrollY - ((scrollY == maxScrollY) ? 0 : extendedPaddingBottom);
+        if (shadow != null) {
+            clipLeft += Math.min(0, shadow.dx - shadow.r);
+            clipRight += Math.max(0, shadow.dx + shadow.r);
+            clipTop += Math.min(0, shadow.dy - shadow.r);
+            clipBottom += Math.max(0, shadow.dy + shadow.r);
+        }
+
+        // Layout always draws with the paint it was created with, so the pass paint is swapped
+        // in for the duration of the draw. This is a plain native copy: the view is not notified.
+        final TextPaint layoutPaint = layout.getPaint();
+        restorePaint.set(layoutPaint);
+        layoutPaint.set(paint);
+
+        final int saveCount = canvas.save();
+        canvas.clipRect(clipLeft, clipTop, clipRight, clipBottom);
+        canvas.translate(compoundPaddingLeft, view.getEffectLayoutTop(layout));
+        drawingPass = true;
+        try {
+            layout.draw(canvas);
+        } finally {
+            drawingPass = false;
+        }
+        canvas.restoreToCount(saveCount);
+
+        layoutPaint.set(restorePaint);
+    }
+}
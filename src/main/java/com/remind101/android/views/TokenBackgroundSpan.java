@@ -1,170 +1,420 @@
 package com.remind101.android.views;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.RectF;
-import android.text.Editable;
-import android.text.Selection;
-import android.text.Spannable;
-import android.text.SpannableStringBuilder;
-import android.text.TextWatcher;
+import android.graphics.Typeface;
+import android.text.TextUtils;
 import android.text.style.ReplacementSpan;
 
-import com.remind101.ui.listeners.OnSelectionChangeListener;
-
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class TokenBackgroundSpan<T> extends ReplacementSpan {
     public final T tokenValue;
+    // null for read-only tokens, which must not keep a view alive
     private final EnhancedTextView container;
-    private final int strokeWidth = 2;
-
-    private RectF rect = new RectF();
-    private final Paint backgroundPaint;
-    private final Paint borderPaint;
-    private final float paddingHorizontal;
-    private final float paddingVertical;
-    private final float rounding;
+    private final TokenStyle style;
+    private final boolean readOnly;
+    // chip cache setting captured by read-only tokens
+    private final boolean chipCacheEnabled;
 
-    private Paint.FontMetrics fontMetricsReference;
+    // drawing happens on the UI thread only, so the scratch objects are shared by all tokens
+    private static final RectF rect = new RectF();
+    private static final Paint.FontMetrics fontMetricsReference = new Paint.FontMetrics();
+    private static char[] mappedChars = new char[64];
 
     private boolean selected;
+    // text of the token before it was first edited, set by the TokenManager
+    String originalText;
     private TextDisplayTransformation transformation;
 
-    // minor optimization to avoid constantly allocating the same strings during onDraw
-    private CharSequence lastText;
-    private SpannableStringBuilder lastTransform;
-    private int lastStart;
-    private int lastEnd;
-
-    private char[] bufferNew = new char[1024];
-    private char[] bufferOld = new char[1024];
+    // location of the transformed text in the container's TokenDisplayText
+    private int displayEpoch = -1;
+    private boolean displayValid;
+    private CharSequence displaySourceText;
+    private String displaySource;
+    private int displayStart;
+    private int displayEnd;
+    private int displayOffset;
+    private int displayLength;
+    // transformed text of a read-only token, whose text never changes
+    private CharSequence readOnlyDisplayText;
+
+    // memoized width of the display text and what it was measured from
+    private float measuredWidth = -1;
+    // widths of the prefix and of the token text of a TextDecoration
+    private float measuredPrefixWidth;
+    private float measuredBodyWidth;
+    private String measuredSource;
+    private CharSequence measuredText;
+    private int measuredStart;
+    private int measuredEnd;
+    private int measuredTextGeneration;
+    private TextDisplayTransformation measuredTransformation;
+    private float measuredTextSize;
+    private float measuredTextScaleX;
+    private Typeface measuredTypeface;
+    private int measuredPaintFlags;
+    // hash of the display text for the chip cache, reset whenever the width is measured again
+    private int chipTextHash;
+    private boolean chipTextHashValid;
 
     public TokenBackgroundSpan(T tokenValue, EnhancedTextView container) {
+        this(tokenValue, container, false);
+    }
+
+    /**
+     * @param readOnly true for a token of a text that never changes, e.g. in a list row. A
+     *                 read-only token is only measured and drawn: it does not make the container
+     *                 watch its text and selection, cannot be selected, and keeps its measurements
+     *                 across every text and view it is set on, as long as the font is the same.
+     *                 It copies the token style and chip cache setting of {@code container} and
+     *                 does not keep a reference to it.
+     * @see EnhancedTextView#buildReadOnlyTokenText(java.util.List, CharSequence, TextDisplayTransformation)
+     */
+    public TokenBackgroundSpan(T tokenValue, EnhancedTextView container, boolean readOnly) {
         this.tokenValue = tokenValue;
-        this.container = container;
-        this.paddingHorizontal = container.getTokenHorizontalPadding();
-        this.paddingVertical = container.getTokenVerticalPadding();
-        this.rounding = container.getTokenBorderRadius();
+        this.container = readOnly ? null : container;
+        this.style = container.getTokenStyle();
+        this.readOnly = readOnly;
+        this.chipCacheEnabled = container.isTokenChipCacheEnabled();
 
-        backgroundPaint = new Paint();
-        backgroundPaint.setColor(container.getTokenBackgroundColor());
+        if (!readOnly) {
+            container.getTokenManager(); // makes sure the container routes edits and selection to its tokens
+        }
+    }
 
-        borderPaint = new Paint();
-        borderPaint.setColor(container.getTokenBorderColor());
-        borderPaint.setStrokeWidth(strokeWidth);
-        borderPaint.setStyle(Paint.Style.STROKE);
-        borderPaint.setAntiAlias(true);
+    /**
+     * Creates a read-only token drawn with {@code style}, without any view.
+     */
+    TokenBackgroundSpan(T tokenValue, TokenStyle style, boolean chipCacheEnabled) {
+        this.tokenValue = tokenValue;
+        this.container = null;
+        this.style = style;
+        this.readOnly = true;
+        this.chipCacheEnabled = chipCacheEnabled;
+    }
+
+    private boolean isChipCacheEnabled() {
+        return readOnly ? chipCacheEnabled : container.isTokenChipCacheEnabled();
+    }
 
-        fontMetricsReference = null;
+    public boolean isReadOnly() {
+        return readOnly;
+    }
 
-        setupCallbacksForContainer();
+    private int getTextGeneration() {
+        return readOnly ? -1 : container.getTextGeneration();
     }
 
-    private CharSequence getCachedDisplayText(CharSequence text, int start, int end) {
-        if (start != lastStart || end != lastEnd || lastText != null && lastText.length() != text.length()) {
-            // don't do any work if we can't cache hit
-            return null;
+    private CharSequence getReadOnlyDisplayText(CharSequence text, int start, int end) {
+        if (readOnlyDisplayText == null) {
+            readOnlyDisplayText = transformation.transform(text.subSequence(start, end));
         }
+        return readOnlyDisplayText;
+    }
 
-        if (text instanceof SpannableStringBuilder && lastText instanceof SpannableStringBuilder) {
-            // this is silly but the only way to compare w/o malloc, thanks poor SSB implementation
-            SpannableStringBuilder ssbText = (SpannableStringBuilder) text;
-            SpannableStringBuilder ssbLast = (SpannableStringBuilder) lastText;
+    /**
+     * Makes sure the transformed text of the {@code start..end} range of {@code text} is in the
+     * container's shared display text, and returns that buffer.
+     */
+    private TokenDisplayText updateDisplayText(CharSequence text, int start, int end) {
+        final TokenDisplayText displayText = container.getTokenDisplayText();
+        displayText.update(container.getTextGeneration());
+        final boolean inBuffer = displayEpoch == displayText.getEpoch();
+        if (!inBuffer || !displayValid || !isDisplaySource(text, start, end)) {
+            final String source = text.subSequence(start, end).toString();
+            CharSequence transformed = transformation.transform(source);
+            displayOffset = displayText.append(transformed, inBuffer ? displayLength : 0);
+            displayLength = transformed.length();
+            displaySourceText = text;
+            displaySource = source;
+            displayStart = start;
+            displayEnd = end;
+            displayEpoch = displayText.getEpoch();
+            displayValid = true;
+        }
+        return displayText;
+    }
 
-            if (ssbText.getSpanStart(this) != ssbLast.getSpanStart(this) ||
-                    ssbText.getSpanEnd(this) != ssbLast.getSpanEnd(this)) {
-                // if we've moved we cant match (even if the characters were updated to be identical)
-                return null;
-            }
+    private boolean isDisplaySource(CharSequence text, int start, int end) {
+        if (text == displaySourceText && start == displayStart && end == displayEnd) {
+            return true;
+        }
+        // another text object, e.g. a copy made by the layout: compare the token text only
+        final int length = end - start;
+        if (length == displaySource.length() && TextUtils.regionMatches(text, start, displaySource, 0, length)) {
+            displaySourceText = text;
+            displayStart = start;
+            displayEnd = end;
+            return true;
+        }
+        return false;
+    }
 
-            if (text.length() > bufferNew.length) {
-                bufferNew = new char[(int)(text.length() * 1.1)];
-            }
-            if (lastText != null && lastText.length() > bufferOld.length) {
-                bufferOld = new char[(int)(lastText.length() * 1.1)];
-            }
+    /**
+     * Returns the width of the display text, measuring it only if the token text, its
+     * transformation or the font changed since the last call.
+     */
+    private float getDisplayTextWidth(Paint paint, CharSequence text, int start, int end) {
+        if (measuredWidth >= 0
+                && measuredTransformation == transformation
+                && measuredTextSize == paint.getTextSize()
+                && measuredTextScaleX == paint.getTextScaleX()
+                && measuredTypeface == paint.getTypeface()
+                && measuredPaintFlags == paint.getFlags()
+                && isMeasuredSource(text, start, end)) {
+            return measuredWidth;
+        }
 
-            ssbText.getChars(0, ssbText.length(), bufferNew, 0);
-            ssbLast.getChars(0, ssbLast.length(), bufferOld, 0);
+        rememberWidth(measureDisplayText(paint, text, start, end), paint, text, start, end, getTextGeneration());
+        return measuredWidth;
+    }
 
-            if (Arrays.equals(bufferNew, bufferOld)) {
-                return lastTransform;
-            }
+    /**
+     * Measures the display text of a token that is not attached to the container yet, without
+     * touching any state shared with the container, so it can run off the UI thread.
+     *
+     * @see PrecomputedTokenText
+     */
+    void precomputeWidth(Paint paint, CharSequence text, int start, int end) {
+        final float width;
+        if (transformation == null) {
+            width = paint.measureText(text, start, end);
+        } else if (transformation instanceof TextDecoration) {
+            width = measureDecoratedText(paint, (TextDecoration) transformation, text, start, end, new char[end - start]);
+        } else {
+            final CharSequence transformed = transformation.transform(text.subSequence(start, end));
+            width = paint.measureText(transformed, 0, transformed.length());
         }
-        return null;
+        // the text is copied when it is set on the view, so only the token text will match
+        rememberWidth(width, paint, text, start, end, -1);
+    }
+
+    private void rememberWidth(float width, Paint paint, CharSequence text, int start, int end, int textGeneration) {
+        measuredWidth = width;
+        measuredSource = text.subSequence(start, end).toString();
+        measuredText = text;
+        measuredStart = start;
+        measuredEnd = end;
+        measuredTextGeneration = textGeneration;
+        measuredTransformation = transformation;
+        measuredTextSize = paint.getTextSize();
+        measuredTextScaleX = paint.getTextScaleX();
+        measuredTypeface = paint.getTypeface();
+        measuredPaintFlags = paint.getFlags();
+        chipTextHashValid = false;
     }
 
-    private void setCachedDisplayText(CharSequence text, int start, int end, SpannableStringBuilder cacheValue) {
-        lastText = text != null ? new SpannableStringBuilder(text): text; // required defensive copy
-        lastTransform = cacheValue;
-        lastStart = start;
-        lastEnd = end;
+    private boolean isMeasuredSource(CharSequence text, int start, int end) {
+        if (text == measuredText && start == measuredStart && end == measuredEnd
+                && measuredTextGeneration == getTextGeneration()) {
+            return true;
+        }
+        // an edit elsewhere in the field, or a copy of the text: compare the token text only
+        final int length = end - start;
+        if (length == measuredSource.length() && TextUtils.regionMatches(text, start, measuredSource, 0, length)) {
+            measuredText = text;
+            measuredStart = start;
+            measuredEnd = end;
+            measuredTextGeneration = getTextGeneration();
+            return true;
+        }
+        return false;
     }
 
-    private CharSequence getDisplayText(CharSequence text, int start, int end) {
-        CharSequence cachedValue = getCachedDisplayText(text, start, end);
-        if (cachedValue != null) {
-            return cachedValue;
+    private float measureDisplayText(Paint paint, CharSequence text, int start, int end) {
+        if (transformation == null) {
+            return paint.measureText(text, start, end);
+        }
+        if (transformation instanceof TextDecoration) {
+            return measureDecoratedText(paint, (TextDecoration) transformation, text, start, end, null);
         }
+        if (readOnly) {
+            final CharSequence displayText = getReadOnlyDisplayText(text, start, end);
+            return paint.measureText(displayText, 0, displayText.length());
+        }
+        final TokenDisplayText displayText = updateDisplayText(text, start, end);
+        return paint.measureText(displayText.getChars(), displayOffset, displayLength);
+    }
 
-        SpannableStringBuilder computValue = new SpannableStringBuilder(text);
-        if (transformation != null) {
-            CharSequence transformed = transformation.transform(text.subSequence(start, end));
-            computValue.replace(start, end, transformed);
+    /**
+     * Measures the prefix, the token text and the suffix separately, straight from {@code text}.
+     *
+     * @param buffer receives the mapped token text if the decoration maps characters, null to
+     *               use the buffer shared on the UI thread
+     */
+    private float measureDecoratedText(Paint paint, TextDecoration decoration, CharSequence text,
+                                       int start, int end, char[] buffer) {
+        measuredPrefixWidth = paint.measureText(decoration.getPrefix());
+        if (decoration.mapsChars()) {
+            final char[] chars = mapChars(decoration, text, start, end, buffer);
+            measuredBodyWidth = paint.measureText(chars, 0, end - start);
+        } else {
+            measuredBodyWidth = paint.measureText(text, start, end);
         }
+        return measuredPrefixWidth + measuredBodyWidth + paint.measureText(decoration.getSuffix());
+    }
 
-        setCachedDisplayText(text, start, end, computValue);
-        return computValue;
+    private static char[] mapChars(TextDecoration decoration, CharSequence text, int start, int end, char[] buffer) {
+        final int length = end - start;
+        if (buffer == null) {
+            if (mappedChars.length < length) {
+                mappedChars = new char[Math.max(mappedChars.length * 2, length)];
+            }
+            buffer = mappedChars;
+        }
+        for (int i = 0; i < length; i++) {
+            buffer[i] = decoration.mapChar(text.charAt(start + i));
+        }
+        return buffer;
     }
 
     @Override
     public int getSize(Paint paint, CharSequence text, int start, int end, Paint.FontMetricsInt fm) {
-        CharSequence displayText = getDisplayText(text, start, end);
-        int newEnd = end + (displayText.length() - text.length());
-        return Math.round(paint.measureText(displayText, start, newEnd) + paddingHorizontal * 2);
+        return Math.round(getDisplayTextWidth(paint, text, start, end) + style.paddingHorizontal * 2);
     }
 
     @Override
     public void draw(Canvas canvas, CharSequence text, int start, int end, float x, int top, int y, int bottom, Paint paint) {
-        if (fontMetricsReference == null) {
-            fontMetricsReference = paint.getFontMetrics();
-        } else {
-            paint.getFontMetrics(fontMetricsReference);
-        }
+        paint.getFontMetrics(fontMetricsReference);
         final int belowBaseline = (int) fontMetricsReference.bottom;
         final int width = getSize(paint, text, start, end, null);
 
-        rect.set(x + strokeWidth,
-                top - paddingVertical,
-                x + width - strokeWidth,
-                y + belowBaseline + paddingVertical);
+        final int textColor = style.getTextColor(selected);
+        if (textColor != -1) {
+            paint.setColor(textColor);
+        }
 
-        canvas.drawRoundRect(rect, rounding, rounding, backgroundPaint);
-        canvas.drawRoundRect(rect, rounding, rounding, borderPaint);
+        final boolean cached = isChipCacheEnabled() && width > 0 && isPlainPaint(paint);
+        if (transformation instanceof TextDecoration && !cached) {
+            drawChipBackground(canvas, x, top, y, belowBaseline, width);
+            drawDecoratedText(canvas, (TextDecoration) transformation, text, start, end, x + style.paddingHorizontal, y, paint);
+            return;
+        }
 
-        if (selected && container.getTokenSelectedTextColor() != -1) {
-            paint.setColor(container.getTokenSelectedTextColor());
-        } else if (!selected && container.getTokenTextColor() != -1) {
-            paint.setColor(container.getTokenTextColor());
+        CharSequence displayText = text;
+        int displayTextStart = start;
+        int displayTextEnd = end;
+        if (transformation != null && readOnly) {
+            displayText = getReadOnlyDisplayText(text, start, end);
+            displayTextStart = 0;
+            displayTextEnd = displayText.length();
+        } else if (transformation != null) {
+            displayText = updateDisplayText(text, start, end);
+            displayTextStart = displayOffset;
+            displayTextEnd = displayOffset + displayLength;
         }
 
-        CharSequence displayText = getDisplayText(text, start, end);
-        int newEnd = end + (displayText.length() - text.length());
-        canvas.drawText(displayText, start, newEnd, x + paddingHorizontal, y, paint);
+        if (cached) {
+            drawCachedChip(canvas, displayText, displayTextStart, displayTextEnd, x, top, y, belowBaseline, width, paint);
+        } else {
+            drawChip(canvas, displayText, displayTextStart, displayTextEnd, x, top, y, belowBaseline, width, paint);
+        }
     }
 
-    public void setSelected(boolean selected) {
-        this.selected = selected;
-        if (selected) {
-            backgroundPaint.setColor(container.getTokenSelectedBackgroundColor());
-            borderPaint.setColor(container.getTokenSelectedBorderColor());
+    private void drawChipBackground(Canvas canvas, float x, int top, int y, int belowBaseline, int width) {
+        final float rounding = style.rounding;
+        rect.set(x + TokenStyle.STROKE_WIDTH,
+                top - style.paddingVertical,
+                x + width - TokenStyle.STROKE_WIDTH,
+                y + belowBaseline + style.paddingVertical);
+
+        canvas.drawRoundRect(rect, rounding, rounding, style.getBackgroundPaint(selected));
+        canvas.drawRoundRect(rect, rounding, rounding, style.getBorderPaint(selected));
+    }
+
+    /**
+     * Draws the prefix, the token text and the suffix one after the other, using the widths
+     * measured by {@link #getSize}.
+     */
+    private void drawDecoratedText(Canvas canvas, TextDecoration decoration, CharSequence text,
+                                   int start, int end, float x, int y, Paint paint) {
+        final String prefix = decoration.getPrefix();
+        if (prefix.length() > 0) {
+            canvas.drawText(prefix, x, y, paint);
+        }
+        x += measuredPrefixWidth;
+        if (decoration.mapsChars()) {
+            canvas.drawText(mapChars(decoration, text, start, end, null), 0, end - start, x, y, paint);
         } else {
-            backgroundPaint.setColor(container.getTokenBackgroundColor());
-            borderPaint.setColor(container.getTokenBorderColor());
+            canvas.drawText(text, start, end, x, y, paint);
+        }
+        x += measuredBodyWidth;
+        final String suffix = decoration.getSuffix();
+        if (suffix.length() > 0) {
+            canvas.drawText(suffix, x, y, paint);
+        }
+    }
+
+    private void drawChip(Canvas canvas, CharSequence displayText, int displayTextStart, int displayTextEnd,
+                          float x, int top, int y, int belowBaseline, int width, Paint paint) {
+        drawChipBackground(canvas, x, top, y, belowBaseline, width);
+
+        if (displayText instanceof TokenDisplayText) {
+            canvas.drawText(((TokenDisplayText) displayText).getChars(), displayTextStart,
+                    displayTextEnd - displayTextStart, x + style.paddingHorizontal, y, paint);
+        } else {
+            canvas.drawText(displayText, displayTextStart, displayTextEnd, x + style.paddingHorizontal, y, paint);
+        }
+    }
+
+    /**
+     * @return whether the chip drawn with {@code paint} is only made of the chip colors and the
+     * filled text, and can go through the chip cache
+     */
+    private static boolean isPlainPaint(Paint paint) {
+        return paint.getStyle() == Paint.Style.FILL
+                && paint.getMaskFilter() == null
+                && paint.getXfermode() == null
+                && paint.getShader() == null
+                && !TextEffectRenderer.isDrawingPass();
+    }
+
+    /**
+     * Draws the chip from the shared {@link TokenChipCache}, rendering it into the cache first if
+     * no identical chip has been drawn yet.
+     */
+    private void drawCachedChip(Canvas canvas, CharSequence displayText, int displayTextStart, int displayTextEnd,
+                                float x, int top, int y, int belowBaseline, int width, Paint paint) {
+        // the border is stroked on the edge of the chip, leave room for its outer half
+        final int chipTop = top - (int) Math.ceil(style.paddingVertical) - TokenStyle.STROKE_WIDTH;
+        final int chipBottom = y + belowBaseline + (int) Math.ceil(style.paddingVertical) + TokenStyle.STROKE_WIDTH;
+        final int height = chipBottom - chipTop;
+        if (height <= 0) {
+            return;
+        }
+
+        final TokenChipCache cache = TokenChipCache.getDefault();
+        final TokenChipCache.Key key = cache.obtainLookupKey();
+        if (!chipTextHashValid) {
+            chipTextHash = TokenChipCache.Key.hashText(displayText, displayTextStart, displayTextEnd);
+            chipTextHashValid = true;
+        }
+        key.set(displayText, displayTextStart, displayTextEnd, chipTextHash, width, height, y - chipTop,
+                style.getBackgroundPaint(selected).getColor(), style.getBorderPaint(selected).getColor(),
+                style.paddingHorizontal, style.rounding, paint);
+        Bitmap chip = cache.get(key);
+        if (chip == null) {
+            chip = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            drawChip(new Canvas(chip), displayText, displayTextStart, displayTextEnd,
+                    0, top - chipTop, y - chipTop, belowBaseline, width, paint);
+            cache.put(key, chip);
+        }
+        canvas.drawBitmap(chip, x, chipTop, null);
+    }
+
+    /**
+     * Redraws only the chip of this token, if the state changed. Read-only tokens are never
+     * selected.
+     */
+    public void setSelected(boolean selected) {
+        if (this.selected != selected && !readOnly) {
+            this.selected = selected;
+            container.invalidateToken(this);
         }
     }
 
@@ -176,7 +426,9 @@ public class TokenBackgroundSpan<T> extends ReplacementSpan {
     public void setTransformation(TextDisplayTransformation transformation) {
         if (transformation != this.transformation) {
             this.transformation = transformation;
-            setCachedDisplayText(null, 0, 0, null);
+            // the slice is replaced on next use, and counted as garbage in the buffer
+            displayValid = false;
+            readOnlyDisplayText = null;
         }
     }
 
@@ -188,125 +440,65 @@ public class TokenBackgroundSpan<T> extends ReplacementSpan {
         CharSequence transform(CharSequence text);
     }
 
-    public static final TextDisplayTransformation COMMA_TRANSFORM = new TextDisplayTransformation() {
-        @Override
-        public CharSequence transform(CharSequence text) {
-            return text + ",";
+    /**
+     * Transformation that adds a prefix and a suffix to the token text, and optionally maps its
+     * characters one to one. Tokens measure and draw it piece by piece straight from the source
+     * text, so no display string is built; {@link #transform(CharSequence)} is only used where
+     * the whole display text is needed, like the chip cache.
+     * <p/>
+     * Arbitrary transformations can still implement {@link TextDisplayTransformation} directly.
+     */
+    public static class TextDecoration implements TextDisplayTransformation {
+        private final String prefix;
+        private final String suffix;
+
+        public TextDecoration(String prefix, String suffix) {
+            this.prefix = prefix != null ? prefix : "";
+            this.suffix = suffix != null ? suffix : "";
         }
-    };
 
-    public static final TextDisplayTransformation PERIOD_TRANSFORM = new TextDisplayTransformation() {
-        @Override
-        public CharSequence transform(CharSequence text) {
-            return text + ".";
+        public final String getPrefix() {
+            return prefix;
         }
-    };
-
-    public static final TextDisplayTransformation NO_TRANSFORM = null;
 
-    private void setupCallbacksForContainer() {
-        container.setOnSelectionChangeListener(new OnSelectionChangeListener() {
-            @Override
-            public void onSelectionChanged(EnhancedTextView view, int selectionStart, int selectionEnd) {
-                Spannable spannable = (Spannable) container.getText();
-
-                Object[] allSpans = spannable.getSpans(0, container.length(), TokenBackgroundSpan.class);
-                Object[] includedSpans = spannable.getSpans(selectionStart, selectionEnd, TokenBackgroundSpan.class);
-
-                for (Object span : allSpans) {
-                    ((TokenBackgroundSpan<T>) span).setSelected(false);
-                    expandSetSelectionIfInSpan(selectionStart, selectionEnd, spannable, span);
-                }
-
-                for (Object span : includedSpans) {
-                    if (spannable.getSpanStart(span) < selectionEnd) {
-                        ((TokenBackgroundSpan<T>) span).setSelected(true);
-                    }
-                }
-            }
-
-            private void expandSetSelectionIfInSpan(int selectionStart, int selectionEnd, Spannable spannable, Object span) {
-                int spanStart = spannable.getSpanStart(span);
-                int spanEnd = spannable.getSpanEnd(span);
-
-                boolean isPointSelection = selectionStart == selectionEnd;
-
-                int newSelectionStart = selectionStart;
-                int newSelectionEnd = selectionEnd;
-
-                final boolean startIsInSpan = selectionStart > spanStart && selectionStart < spanEnd;
-                if (startIsInSpan && isPointSelection) {
-                    newSelectionStart = spanEnd;
-                } else if (startIsInSpan && !isPointSelection) {
-                    newSelectionStart = spanStart;
-                }
-
-                final boolean endIsInSpan = selectionEnd > spanStart && selectionEnd < spanEnd;
-                if (endIsInSpan) {
-                    newSelectionEnd = spanEnd;
-                }
-
-                if (newSelectionEnd != selectionEnd || newSelectionStart != selectionStart) {
-                    Selection.setSelection(spannable, newSelectionStart, newSelectionEnd);
-                }
-            }
-        });
-
-        container.addTextChangedListener(new TextWatcher() {
-            String originalTokenText;
+        public final String getSuffix() {
+            return suffix;
+        }
 
-            @Override
-            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
-                if (originalTokenText != null || !(s instanceof Spannable)) return;
+        /**
+         * Maps a character of the token text. Only called if {@link #mapsChars()} returns true.
+         */
+        public char mapChar(char c) {
+            return c;
+        }
 
-                final Spannable newSpannableText = (Spannable) s;
-                final int tokenStart = newSpannableText.getSpanStart(TokenBackgroundSpan.this);
-                final int tokenEnd = newSpannableText.getSpanEnd(TokenBackgroundSpan.this);
+        /**
+         * @return true if the token text goes through {@link #mapChar(char)}
+         */
+        public boolean mapsChars() {
+            return false;
+        }
 
-                if (tokenStart == -1 || tokenEnd == -1) {
-                    return;
+        @Override
+        public CharSequence transform(CharSequence text) {
+            StringBuilder builder = new StringBuilder(prefix.length() + text.length() + suffix.length());
+            builder.append(prefix);
+            if (mapsChars()) {
+                for (int i = 0, length = text.length(); i < length; i++) {
+                    builder.append(mapChar(text.charAt(i)));
                 }
-
-                originalTokenText = s.subSequence(tokenStart, tokenEnd).toString();
+            } else {
+                builder.append(text);
             }
+            return builder.append(suffix).toString();
+        }
+    }
 
-            @Override
-            public void onTextChanged(CharSequence s, int start, int before, int count) {
-            }
+    public static final TextDisplayTransformation COMMA_TRANSFORM = new TextDecoration(null, ",");
 
-            @Override
-            public void afterTextChanged(Editable s) {
-                int tokenStart = s.getSpanStart(TokenBackgroundSpan.this);
-                int tokenEnd = s.getSpanEnd(TokenBackgroundSpan.this);
-                if (originalTokenText != null) {
-                    if (tokenStart >= 0 && tokenEnd >= 0) {
-                        final String newTokenText = s.subSequence(tokenStart, tokenEnd).toString();
-                        if (!newTokenText.equals(originalTokenText)) {
-                            if (originalTokenText.length() > 0 &&
-                                    newTokenText.length() > 1 &&
-                                    originalTokenText.startsWith(newTokenText)) {
-                                s.replace(tokenStart, tokenEnd, "");
-                            }
-                            s.removeSpan(TokenBackgroundSpan.this);
-                            removeMyself();
-                        }
-                    } else if (tokenStart == -1 || tokenEnd == -1) {
-                        removeMyself();
-                    }
-                }
-            }
+    public static final TextDisplayTransformation PERIOD_TRANSFORM = new TextDecoration(null, ".");
 
-            private void removeMyself() {
-                final TextWatcher me = this;
-                container.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        container.removeTextChangedListener(me);
-                    }
-                });
-            }
-        });
-    }
+    public static final TextDisplayTransformation NO_TRANSFORM = null;
 
     @Override
     public String toString() {
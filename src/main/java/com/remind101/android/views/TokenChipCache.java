@@ -0,0 +1,251 @@
+package com.remind101.android.views;
+
+import android.graphics.Bitmap;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.text.TextUtils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of rasterized token chips (background, border and text) shared by every
+ * {@link TokenBackgroundSpan}, across views. A chip is keyed by everything that affects its
+ * pixels: display text, colors, chip geometry and the text paint, so identical tokens in
+ * different fields share one bitmap and drawing a cached chip is a single blit.
+ * <p/>
+ * Only chips drawn with a plain fill paint are cached: the stroke, shadow and mask passes of
+ * the text effects draw their chips directly.
+ * <p/>
+ * Enabled per view with {@link EnhancedTextView#setTokenChipCacheEnabled(boolean)} or the
+ * {@code tokenChipCache} attribute. The cache is meant to be used from the UI thread only.
+ */
+public class TokenChipCache {
+
+    public static final int DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+
+    private static TokenChipCache defaultCache;
+
+    private final LinkedHashMap<Key, Bitmap> chips = new LinkedHashMap<Key, Bitmap>(16, 0.75f, true);
+    // reused for lookups so a cache hit does not allocate
+    private final Key lookupKey = new Key();
+    private int maxBytes;
+    private int size;
+
+    private int hitCount;
+    private int missCount;
+    private int evictionCount;
+
+    public TokenChipCache(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static TokenChipCache getDefault() {
+        if (defaultCache == null) {
+            defaultCache = new TokenChipCache(DEFAULT_MAX_BYTES);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Returns the key used for the next {@link #get(Key)}. It is only valid until the next call.
+     */
+    Key obtainLookupKey() {
+        return lookupKey;
+    }
+
+    Bitmap get(Key key) {
+        Bitmap chip = chips.get(key);
+        if (chip != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return chip;
+    }
+
+    /**
+     * Stores {@code chip} under an immutable copy of {@code key}.
+     */
+    void put(Key key, Bitmap chip) {
+        final int byteCount = chip.getRowBytes() * chip.getHeight();
+        if (byteCount > maxBytes) {
+            return;
+        }
+        Bitmap previous = chips.put(key.copy(), chip);
+        if (previous != null) {
+            size -= previous.getRowBytes() * previous.getHeight();
+        }
+        size += byteCount;
+        trimToSize(maxBytes);
+    }
+
+    public void setMaxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the number of bytes currently held by cached chips
+     */
+    public int size() {
+        return size;
+    }
+
+    public void evictAll() {
+        trimToSize(0);
+    }
+
+    public int hitCount() {
+        return hitCount;
+    }
+
+    public int missCount() {
+        return missCount;
+    }
+
+    public int evictionCount() {
+        return evictionCount;
+    }
+
+    private void trimToSize(int targetBytes) {
+        // evicted bitmaps are not recycled: a hardware display list may still reference them
+        Iterator<Map.Entry<Key, Bitmap>> iterator = chips.entrySet().iterator();
+        while (size > targetBytes && iterator.hasNext()) {
+            Bitmap chip = iterator.next().getValue();
+            iterator.remove();
+            size -= chip.getRowBytes() * chip.getHeight();
+            evictionCount++;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TokenChipCache[maxBytes=" + maxBytes + ",size=" + size + ",hits=" + hitCount
+                + ",misses=" + missCount + ",evictions=" + evictionCount + "]";
+    }
+
+    static final class Key {
+        private CharSequence text;
+        private int start;
+        private int end;
+        private int width;
+        private int height;
+        private int baseline;
+        private int backgroundColor;
+        private int borderColor;
+        private int textColor;
+        private float paddingHorizontal;
+        private float rounding;
+        private float textSize;
+        private float textScaleX;
+        private Typeface typeface;
+        private int paintFlags;
+        private int hashCode;
+
+        /**
+         * @return the hash of the {@code start..end} range of {@code text}, to be passed to
+         * {@link #set}
+         */
+        static int hashText(CharSequence text, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + text.charAt(i);
+            }
+            return hash;
+        }
+
+        /**
+         * @param text      holds the display text of the chip between {@code start} and {@code end}
+         * @param textHash  {@link #hashText} of the display text, computed once by the caller
+         * @param baseline  distance from the top of the chip bitmap to the text baseline
+         */
+        void set(CharSequence text, int start, int end, int textHash, int width, int height, int baseline,
+                 int backgroundColor, int borderColor, float paddingHorizontal, float rounding, Paint paint) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            this.width = width;
+            this.height = height;
+            this.baseline = baseline;
+            this.backgroundColor = backgroundColor;
+            this.borderColor = borderColor;
+            this.textColor = paint.getColor();
+            this.paddingHorizontal = paddingHorizontal;
+            this.rounding = rounding;
+            this.textSize = paint.getTextSize();
+            this.textScaleX = paint.getTextScaleX();
+            this.typeface = paint.getTypeface();
+            this.paintFlags = paint.getFlags();
+
+            int hash = textHash;
+            hash = 31 * hash + width;
+            hash = 31 * hash + height;
+            hash = 31 * hash + baseline;
+            hash = 31 * hash + backgroundColor;
+            hash = 31 * hash + borderColor;
+            hash = 31 * hash + textColor;
+            hash = 31 * hash + Float.floatToIntBits(textSize);
+            hash = 31 * hash + (typeface != null ? typeface.hashCode() : 0);
+            hashCode = hash;
+        }
+
+        private Key copy() {
+            Key key = new Key();
+            key.text = text.subSequence(start, end).toString();
+            key.start = 0;
+            key.end = end - start;
+            key.width = width;
+            key.height = height;
+            key.baseline = baseline;
+            key.backgroundColor = backgroundColor;
+            key.borderColor = borderColor;
+            key.textColor = textColor;
+            key.paddingHorizontal = paddingHorizontal;
+            key.rounding = rounding;
+            key.textSize = textSize;
+            key.textScaleX = textScaleX;
+            key.typeface = typeface;
+            key.paintFlags = paintFlags;
+            key.hashCode = hashCode;
+            return key;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            final int length = end - start;
+            return hashCode == other.hashCode
+                    && width == other.width
+                    && height == other.height
+                    && baseline == other.baseline
+                    && backgroundColor == other.backgroundColor
+                    && borderColor == other.borderColor
+                    && textColor == other.textColor
+                    && paddingHorizontal == other.paddingHorizontal
+                    && rounding == other.rounding
+                    && textSize == other.textSize
+                    && textScaleX == other.textScaleX
+                    && typeface == other.typeface
+                    && paintFlags == other.paintFlags
+                    && length == other.end - other.start
+                    && TextUtils.regionMatches(text, start, other.text, other.start, length);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.remind101.android.views;
+
+import android.text.TextUtils;
+
+/**
+ * Transformed display text of the token spans of one {@link EnhancedTextView}. Every span
+ * appends its own transformed slice to a single char buffer shared by the container, so the
+ * field holds one copy of the token text regardless of how many tokens it contains.
+ * <p/>
+ * The buffer belongs to one generation of the container text: when the text is edited the
+ * buffer is emptied and the spans append their slices again. Slices replaced in between, e.g.
+ * after a transformation change, are counted, and the buffer is also emptied once they take more
+ * room than the live slices. {@link #getEpoch()} tells spans whether a slice they appended is
+ * still there. Spans check themselves that their slice matches the text they are drawn from, so
+ * different text objects with the same content share the buffer without emptying it.
+ */
+class TokenDisplayText implements CharSequence {
+
+    private char[] chars = new char[64];
+    private int length;
+
+    // number of chars of slices that were replaced by newer ones
+    private int garbage;
+
+    private int textGeneration;
+    private int epoch;
+
+    /**
+     * Makes the buffer current for {@code textGeneration}, dropping every slice appended for
+     * another generation of the text, or every slice if most of the buffer is garbage.
+     */
+    void update(int textGeneration) {
+        if (textGeneration != this.textGeneration || garbage > length / 2) {
+            this.textGeneration = textGeneration;
+            length = 0;
+            garbage = 0;
+            epoch++;
+        }
+    }
+
+    /**
+     * @return a number that changes every time the buffer is emptied
+     */
+    int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Appends {@code slice} to the buffer.
+     *
+     * @param replacedLength length of the slice of the same span that {@code slice} replaces, 0
+     *                       if there is none in the buffer
+     * @return the offset of the slice in {@link #getChars()}
+     */
+    int append(CharSequence slice, int replacedLength) {
+        garbage += replacedLength;
+        final int sliceLength = slice.length();
+        if (length + sliceLength > chars.length) {
+            char[] grown = new char[Math.max(chars.length * 2, length + sliceLength)];
+            System.arraycopy(chars, 0, grown, 0, length);
+            chars = grown;
+        }
+        TextUtils.getChars(slice, 0, sliceLength, chars, length);
+        final int offset = length;
+        length += sliceLength;
+        return offset;
+    }
+
+    char[] getChars() {
+        return chars;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(chars, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+}
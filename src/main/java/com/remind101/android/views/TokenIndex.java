@@ -0,0 +1,243 @@
+package com.remind101.android.views;
+
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * The {@link TokenBackgroundSpan}s of a text, ordered by position. Tokens never overlap, so the
+ * list is sorted by start and by end at the same time and the tokens around an offset are found
+ * with a binary search over the live span positions.
+ * <p/>
+ * The index watches the text it is attached to and is updated as tokens are added and removed.
+ * Edits shift tokens without changing their order, so typing only costs a binary search per
+ * shifted token to confirm it. Changes it cannot follow incrementally mark it dirty, and it is
+ * rebuilt on the next query.
+ * <p/>
+ * Tokens are also hashed by {@link TokenBackgroundSpan#tokenValue}, so the token of a value is
+ * found without scanning the text.
+ */
+class TokenIndex implements SpanWatcher, NoCopySpan {
+
+    private final ArrayList<TokenBackgroundSpan> tokens = new ArrayList<TokenBackgroundSpan>();
+    private final HashMap<Object, TokenBackgroundSpan> tokensByValue = new HashMap<Object, TokenBackgroundSpan>();
+    // whether several tokens hold equal values, in which case only one of them is hashed
+    private boolean duplicateValues;
+    private Spannable text;
+    private boolean dirty = true;
+    private boolean editing;
+
+    private final Comparator<TokenBackgroundSpan> startComparator = new Comparator<TokenBackgroundSpan>() {
+        @Override
+        public int compare(TokenBackgroundSpan lhs, TokenBackgroundSpan rhs) {
+            return text.getSpanStart(lhs) - text.getSpanStart(rhs);
+        }
+    };
+
+    /**
+     * Makes the index follow {@code text}, if it is not already attached to it.
+     *
+     * @return false if the text cannot hold tokens
+     */
+    boolean attach(CharSequence text) {
+        if (text == this.text) {
+            return true;
+        }
+        if (this.text != null) {
+            this.text.removeSpan(this);
+        }
+        tokens.clear();
+        tokensByValue.clear();
+        dirty = true;
+        if (!(text instanceof Spannable)) {
+            this.text = null;
+            return false;
+        }
+        this.text = (Spannable) text;
+        this.text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        return true;
+    }
+
+    /**
+     * While an edit is in progress tokens only shift, so position changes are not tracked.
+     */
+    void setEditing(boolean editing) {
+        this.editing = editing;
+    }
+
+    int size() {
+        ensureIndex();
+        return tokens.size();
+    }
+
+    TokenBackgroundSpan get(int index) {
+        return tokens.get(index);
+    }
+
+    int getStart(TokenBackgroundSpan token) {
+        return text.getSpanStart(token);
+    }
+
+    int getEnd(TokenBackgroundSpan token) {
+        return text.getSpanEnd(token);
+    }
+
+    /**
+     * @return a token holding {@code value}, or null
+     */
+    TokenBackgroundSpan findByValue(Object value) {
+        ensureIndex();
+        return tokensByValue.get(value);
+    }
+
+    /**
+     * @return the index of the first token that ends after {@code position} (or at it, if
+     * {@code inclusive}), or {@link #size()} if there is none
+     */
+    int firstEndingAfter(int position, boolean inclusive) {
+        ensureIndex();
+        int low = 0;
+        int high = tokens.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final int end = text.getSpanEnd(tokens.get(mid));
+            if (end > position || inclusive && end == position) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the token that strictly contains {@code position}, or null
+     */
+    TokenBackgroundSpan findContaining(int position) {
+        final int index = firstEndingAfter(position, false);
+        if (index < tokens.size()) {
+            final TokenBackgroundSpan token = tokens.get(index);
+            if (text.getSpanStart(token) < position) {
+                return token;
+            }
+        }
+        return null;
+    }
+
+    private void ensureIndex() {
+        if (!dirty) {
+            return;
+        }
+        tokens.clear();
+        tokensByValue.clear();
+        duplicateValues = false;
+        if (text != null) {
+            TokenBackgroundSpan[] spans = text.getSpans(0, text.length(), TokenBackgroundSpan.class);
+            Arrays.sort(spans, startComparator);
+            tokens.addAll(Arrays.asList(spans));
+            for (TokenBackgroundSpan token : spans) {
+                addValue(token);
+            }
+        }
+        dirty = false;
+    }
+
+    private void addValue(TokenBackgroundSpan token) {
+        final TokenBackgroundSpan previous = tokensByValue.put(token.tokenValue, token);
+        if (previous != null) {
+            tokensByValue.put(token.tokenValue, previous);
+            duplicateValues = true;
+        }
+    }
+
+    private void removeValue(TokenBackgroundSpan token) {
+        if (tokensByValue.get(token.tokenValue) == token) {
+            tokensByValue.remove(token.tokenValue);
+            if (duplicateValues) {
+                // another token may hold the value
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * @return the index of the first token starting at or after {@code position}, treating
+     * {@code skip} as if it were there, or -1 if a token without a position was found
+     */
+    private int lowerBound(int position, TokenBackgroundSpan skip) {
+        int low = 0;
+        int high = tokens.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final TokenBackgroundSpan token = tokens.get(mid);
+            final int start = token == skip ? position : text.getSpanStart(token);
+            if (start < 0) {
+                return -1;
+            }
+            if (start < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public void onSpanAdded(Spannable text, Object what, int start, int end) {
+        if (dirty || text != this.text || !(what instanceof TokenBackgroundSpan)) {
+            return;
+        }
+        final int index = lowerBound(start, null);
+        if (index < 0) {
+            dirty = true;
+        } else {
+            tokens.add(index, (TokenBackgroundSpan) what);
+            addValue((TokenBackgroundSpan) what);
+        }
+    }
+
+    @Override
+    public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+        if (dirty || text != this.text || !(what instanceof TokenBackgroundSpan)) {
+            return;
+        }
+        int index = lowerBound(start, (TokenBackgroundSpan) what);
+        if (index >= 0) {
+            for (int count = tokens.size(); index < count; index++) {
+                final TokenBackgroundSpan token = tokens.get(index);
+                if (token == what) {
+                    tokens.remove(index);
+                    removeValue(token);
+                    return;
+                }
+                if (text.getSpanStart(token) > start) {
+                    break;
+                }
+            }
+        }
+        dirty = true;
+    }
+
+    /**
+     * Edits shift the tokens after them; depending on the platform version the shifts are
+     * reported during the edit or after {@code afterTextChanged}. A token that is still found at
+     * its place in the order is left alone, so typing does not rebuild the index.
+     */
+    @Override
+    public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+        if (editing || dirty || text != this.text || !(what instanceof TokenBackgroundSpan)) {
+            return;
+        }
+        final int index = lowerBound(nstart, null);
+        if (index < 0 || index >= tokens.size() || tokens.get(index) != what) {
+            dirty = true;
+        }
+    }
+}
@@ -0,0 +1,638 @@
+package com.remind101.android.views;
+
+import android.os.Parcelable;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.Selection;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Keeps track of the {@link TokenBackgroundSpan}s of one {@link EnhancedTextView}. The manager
+ * is the only text watcher and selection handler the tokens need: edits are routed to the tokens
+ * whose range they touch and selection changes to the tokens they overlap, so the cost of a
+ * keystroke does not depend on how many tokens the field contains.
+ */
+class TokenManager implements TextWatcher {
+
+    private final EnhancedTextView container;
+    private final TokenDisplayText displayText = new TokenDisplayText();
+    private final TokenIndex index = new TokenIndex();
+    private int textGeneration;
+
+    private ArrayList<TokenBackgroundSpan> selectedTokens = new ArrayList<TokenBackgroundSpan>();
+    private ArrayList<TokenBackgroundSpan> previouslySelectedTokens = new ArrayList<TokenBackgroundSpan>();
+
+    // tokens touched by the edit that is in progress, collected in beforeTextChanged
+    private TokenBackgroundSpan[] editedTokens;
+
+    // collapsed mode: the summary chip covering the hidden tokens, and what it was computed for
+    private TokenSummarySpan summary;
+    private Spannable summaryText;
+    private boolean collapsed;
+    private int collapsedWidth;
+    private int collapsedLines;
+    private String summaryFormat;
+    // line and horizontal position after each visible token, reused between collapses
+    private int[] lineAfter = new int[0];
+    private float[] xAfter = new float[0];
+
+    TokenManager(EnhancedTextView container) {
+        this.container = container;
+    }
+
+    /**
+     * @see EnhancedTextView#getTextGeneration()
+     */
+    int getTextGeneration() {
+        return textGeneration;
+    }
+
+    TokenDisplayText getDisplayText() {
+        return displayText;
+    }
+
+    /**
+     * Builds the text of a token field in one go: each value is written with its
+     * {@code toString()} followed by {@code separator}, and covered by a token span. No watcher
+     * or layout sees the intermediate states.
+     */
+    <T> SpannableStringBuilder buildTokenText(List<T> tokenValues, CharSequence separator,
+                                              TokenBackgroundSpan.TextDisplayTransformation transformation) {
+        return buildTokenText(container, tokenValues, separator, transformation, false);
+    }
+
+    /**
+     * @param readOnly whether to create read-only tokens, which do not need a manager
+     */
+    static <T> SpannableStringBuilder buildTokenText(EnhancedTextView container, List<T> tokenValues,
+                                                     CharSequence separator,
+                                                     TokenBackgroundSpan.TextDisplayTransformation transformation,
+                                                     boolean readOnly) {
+        final TokenStyle tokenStyle = container.getTokenStyle();
+        final boolean chipCacheEnabled = container.isTokenChipCacheEnabled();
+        SpannableStringBuilder builder = new SpannableStringBuilder();
+        for (int i = 0, count = tokenValues.size(); i < count; i++) {
+            final T value = tokenValues.get(i);
+            final String valueText = String.valueOf(value);
+            if (valueText.length() == 0) {
+                // a token must cover at least one character
+                continue;
+            }
+            final int start = builder.length();
+            builder.append(valueText);
+            TokenBackgroundSpan<T> token = readOnly
+                    ? new TokenBackgroundSpan<T>(value, tokenStyle, chipCacheEnabled)
+                    : new TokenBackgroundSpan<T>(value, container);
+            token.setTransformation(transformation);
+            builder.setSpan(token, start, builder.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            if (separator != null) {
+                builder.append(separator);
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Replaces the tokens with {@code tokenValues}, keeping the spans of the values that are
+     * still there. The leading and trailing tokens whose values did not change are not touched;
+     * the text in between is rewritten with one replace, reusing the existing span of every
+     * value found in it, so moved tokens keep their measurements and selected state.
+     *
+     * @see EnhancedTextView#updateTokens(List, CharSequence, TokenBackgroundSpan.TextDisplayTransformation)
+     */
+    <T> void updateTokens(List<T> tokenValues, CharSequence separator,
+                          TokenBackgroundSpan.TextDisplayTransformation transformation) {
+        final CharSequence text = container.getText();
+        if (!index.attach(text)) {
+            container.setText(buildTokenText(tokenValues, separator, transformation));
+            return;
+        }
+        final Editable editable = text instanceof Editable ? (Editable) text : new SpannableStringBuilder(text);
+        tokenValues = withoutEmptyValues(tokenValues);
+
+        final int oldCount = index.size();
+        final int newCount = tokenValues.size();
+        int prefix = 0;
+        while (prefix < oldCount && prefix < newCount
+                && equal(index.get(prefix).tokenValue, tokenValues.get(prefix))) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < oldCount - prefix && suffix < newCount - prefix
+                && equal(index.get(oldCount - 1 - suffix).tokenValue, tokenValues.get(newCount - 1 - suffix))) {
+            suffix++;
+        }
+        if (prefix == oldCount && prefix == newCount) {
+            return;
+        }
+
+        // the rewritten range: from the first changed token up to the first trailing unchanged
+        // one, or to the separator after the last token
+        final int separatorLength = separator != null ? separator.length() : 0;
+        int start;
+        int end;
+        if (prefix < oldCount) {
+            start = index.getStart(index.get(prefix));
+        } else if (oldCount > 0) {
+            start = skipSeparator(editable, index.getEnd(index.get(oldCount - 1)), separator);
+        } else {
+            start = 0;
+        }
+        if (suffix > 0) {
+            end = index.getStart(index.get(oldCount - suffix));
+        } else if (prefix < oldCount) {
+            end = skipSeparator(editable, index.getEnd(index.get(oldCount - 1)), separator);
+        } else {
+            end = start;
+        }
+
+        final HashMap<Object, TokenBackgroundSpan> reusable = new HashMap<Object, TokenBackgroundSpan>();
+        final TokenBackgroundSpan[] replaced = new TokenBackgroundSpan[oldCount - suffix - prefix];
+        for (int i = prefix; i < oldCount - suffix; i++) {
+            final TokenBackgroundSpan token = index.get(i);
+            replaced[i - prefix] = token;
+            if (!reusable.containsKey(token.tokenValue)) {
+                reusable.put(token.tokenValue, token);
+            }
+        }
+
+        final SpannableStringBuilder builder = new SpannableStringBuilder();
+        if (prefix == oldCount && oldCount > 0 && start == index.getEnd(index.get(oldCount - 1))
+                && separatorLength > 0) {
+            // appending after a last token that is not followed by a separator
+            builder.append(separator);
+        }
+        for (int i = prefix; i < newCount - suffix; i++) {
+            final T value = tokenValues.get(i);
+            final int tokenStart = builder.length();
+            builder.append(String.valueOf(value));
+            TokenBackgroundSpan token = reusable.remove(value);
+            if (token == null) {
+                token = new TokenBackgroundSpan<T>(value, container);
+                token.setTransformation(transformation);
+            }
+            builder.setSpan(token, tokenStart, builder.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            if (separatorLength > 0) {
+                builder.append(separator);
+            }
+        }
+
+        for (TokenBackgroundSpan token : replaced) {
+            editable.removeSpan(token);
+        }
+        editable.replace(start, end, builder);
+        if (editable != text) {
+            container.setText(editable);
+        }
+    }
+
+    /**
+     * @return {@code tokenValues} without the values whose text is empty, which cannot be covered
+     * by a token
+     */
+    private static <T> List<T> withoutEmptyValues(List<T> tokenValues) {
+        ArrayList<T> nonEmpty = null;
+        for (int i = 0, count = tokenValues.size(); i < count; i++) {
+            final T value = tokenValues.get(i);
+            if (String.valueOf(value).length() == 0) {
+                if (nonEmpty == null) {
+                    nonEmpty = new ArrayList<T>(tokenValues.subList(0, i));
+                }
+            } else if (nonEmpty != null) {
+                nonEmpty.add(value);
+            }
+        }
+        return nonEmpty != null ? nonEmpty : tokenValues;
+    }
+
+    private static int skipSeparator(CharSequence text, int position, CharSequence separator) {
+        if (separator != null && position + separator.length() <= text.length()
+                && TextUtils.regionMatches(text, position, separator, 0, separator.length())) {
+            return position + separator.length();
+        }
+        return position;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * @see EnhancedTextView#findToken(Object)
+     */
+    TokenBackgroundSpan findToken(Object value) {
+        return index.attach(container.getText()) ? index.findByValue(value) : null;
+    }
+
+    /**
+     * @see EnhancedTextView#getTokens()
+     */
+    List<TokenBackgroundSpan<?>> getTokens() {
+        final ArrayList<TokenBackgroundSpan<?>> tokens = new ArrayList<TokenBackgroundSpan<?>>();
+        if (index.attach(container.getText())) {
+            for (int i = 0, count = index.size(); i < count; i++) {
+                tokens.add(index.get(i));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @see EnhancedTextView#removeToken(Object, CharSequence)
+     */
+    boolean removeToken(Object value, CharSequence separator) {
+        final TokenBackgroundSpan token = findToken(value);
+        final CharSequence text = container.getText();
+        if (token == null || !(text instanceof Editable)) {
+            return false;
+        }
+        final Editable editable = (Editable) text;
+        final int start = index.getStart(token);
+        final int end = skipSeparator(editable, index.getEnd(token), separator);
+        editable.removeSpan(token);
+        editable.replace(start, end, "");
+        return true;
+    }
+
+    /**
+     * Writes the text, the token values and ranges and the selection into {@code state}.
+     *
+     * @return false if there is no token, or if a token value cannot be written to a parcel
+     */
+    boolean saveTokens(EnhancedTextView.SavedState state) {
+        final CharSequence text = container.getText();
+        if (!index.attach(text)) {
+            return false;
+        }
+        final int count = index.size();
+        if (count == 0) {
+            return false;
+        }
+
+        final int[] ranges = new int[count * 3];
+        final ArrayList<Object> values = new ArrayList<Object>(count);
+        for (int i = 0; i < count; i++) {
+            final TokenBackgroundSpan token = index.get(i);
+            final Object value = token.tokenValue;
+            if (!canWriteToParcel(value)) {
+                return false;
+            }
+            values.add(value);
+            ranges[i * 3] = index.getStart(token);
+            ranges[i * 3 + 1] = index.getEnd(token);
+            ranges[i * 3 + 2] = encodeTransformation(token.getTransformation());
+        }
+        state.text = text.toString();
+        state.tokenRanges = ranges;
+        state.tokenValues = values;
+        state.selectionStart = container.getSelectionStart();
+        state.selectionEnd = container.getSelectionEnd();
+        return true;
+    }
+
+    /**
+     * A value that {@link android.os.Parcel#writeValue(Object)} would fail on makes the parcel
+     * throw long after the state was saved, so serializable values are tried out here.
+     */
+    private static boolean canWriteToParcel(Object value) {
+        if (value == null || value instanceof String || value instanceof Parcelable) {
+            return true;
+        }
+        if (!(value instanceof Serializable)) {
+            return false;
+        }
+        try {
+            final ObjectOutputStream out = new ObjectOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+            out.writeObject(value);
+            out.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Restores the tokens of {@code state}. If the view already got the same text back from its
+     * own saved state, the tokens are set on that text, otherwise the text is rebuilt and
+     * committed with a single {@link EnhancedTextView#setText(CharSequence)}.
+     */
+    void restoreTokens(EnhancedTextView.SavedState state) {
+        final CharSequence current = container.getText();
+        final Spannable target;
+        if (current instanceof Spannable && TextUtils.equals(current, state.text)) {
+            // the view is not laid out yet, setting the spans does not reflow anything
+            target = (Spannable) current;
+            for (TokenBackgroundSpan token : target.getSpans(0, target.length(), TokenBackgroundSpan.class)) {
+                target.removeSpan(token);
+            }
+        } else {
+            target = new SpannableStringBuilder(state.text);
+        }
+
+        final int[] ranges = state.tokenRanges;
+        for (int i = 0, count = state.tokenValues.size(); i < count; i++) {
+            TokenBackgroundSpan<Object> token = new TokenBackgroundSpan<Object>(state.tokenValues.get(i), container);
+            token.setTransformation(decodeTransformation(ranges[i * 3 + 2]));
+            target.setSpan(token, ranges[i * 3], ranges[i * 3 + 1], Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        if (target != current) {
+            container.setText(target);
+        }
+
+        final CharSequence text = container.getText();
+        final int length = text.length();
+        if (text instanceof Spannable && state.selectionStart >= 0 && state.selectionEnd >= 0
+                && state.selectionStart <= length && state.selectionEnd <= length) {
+            Selection.setSelection((Spannable) text, state.selectionStart, state.selectionEnd);
+        }
+    }
+
+    // only the built-in transformations survive a save and restore
+    private static int encodeTransformation(TokenBackgroundSpan.TextDisplayTransformation transformation) {
+        if (transformation == TokenBackgroundSpan.COMMA_TRANSFORM) {
+            return 1;
+        } else if (transformation == TokenBackgroundSpan.PERIOD_TRANSFORM) {
+            return 2;
+        }
+        return 0;
+    }
+
+    private static TokenBackgroundSpan.TextDisplayTransformation decodeTransformation(int code) {
+        switch (code) {
+            case 1:
+                return TokenBackgroundSpan.COMMA_TRANSFORM;
+            case 2:
+                return TokenBackgroundSpan.PERIOD_TRANSFORM;
+            default:
+                return TokenBackgroundSpan.NO_TRANSFORM;
+        }
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        textGeneration++;
+        index.setEditing(true);
+        if (!(s instanceof Spannable)) {
+            editedTokens = null;
+            return;
+        }
+
+        final Spannable spannable = (Spannable) s;
+        editedTokens = spannable.getSpans(start, start + count, TokenBackgroundSpan.class);
+        for (TokenBackgroundSpan token : editedTokens) {
+            if (token.originalText == null) {
+                final int tokenStart = spannable.getSpanStart(token);
+                final int tokenEnd = spannable.getSpanEnd(token);
+                if (tokenStart >= 0 && tokenEnd >= 0) {
+                    token.originalText = s.subSequence(tokenStart, tokenEnd).toString();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        index.setEditing(false);
+        final TokenBackgroundSpan[] tokens = editedTokens;
+        editedTokens = null;
+        if (tokens != null) {
+            removeEditedTokens(s, tokens);
+        }
+        if (collapsed) {
+            collapse(collapsedWidth, collapsedLines, summaryFormat);
+        }
+    }
+
+    private void removeEditedTokens(Editable s, TokenBackgroundSpan[] tokens) {
+        for (TokenBackgroundSpan token : tokens) {
+            final String originalText = token.originalText;
+            final int tokenStart = s.getSpanStart(token);
+            final int tokenEnd = s.getSpanEnd(token);
+            if (originalText == null || tokenStart < 0 || tokenEnd < 0) {
+                continue;
+            }
+
+            final int length = tokenEnd - tokenStart;
+            if (length == originalText.length()
+                    && TextUtils.regionMatches(s, tokenStart, originalText, 0, length)) {
+                continue;
+            }
+
+            // a partially deleted token is removed entirely
+            if (originalText.length() > 0 && length > 1 && length < originalText.length()
+                    && TextUtils.regionMatches(s, tokenStart, originalText, 0, length)) {
+                s.replace(tokenStart, tokenEnd, "");
+            }
+            s.removeSpan(token);
+        }
+    }
+
+    /**
+     * Hides the tokens that do not fit in {@code lines} lines of {@code width} pixels behind a
+     * single summary chip. Tokens are measured in order only until the lines are full, so the
+     * cost depends on the visible area rather than on the number of tokens. The estimate is then
+     * checked against a layout of the collapsed text, which only has the visible tokens and the
+     * summary chip to lay out, and more tokens are hidden if it still takes too many lines.
+     *
+     * @param format summary label format, receiving the number of hidden tokens
+     */
+    void collapse(int width, int lines, String format) {
+        removeSummary();
+        collapsed = true;
+        collapsedWidth = width;
+        collapsedLines = lines;
+        summaryFormat = format;
+        final CharSequence text = container.getText();
+        if (width <= 0 || lines <= 0 || !index.attach(text)) {
+            return;
+        }
+
+        final Spannable spannable = (Spannable) text;
+        final TextPaint paint = container.getPaint();
+        final float paddingHorizontal = container.getTokenStyle().paddingHorizontal;
+        final int count = index.size();
+
+        if (lineAfter.length < count + 1) {
+            lineAfter = new int[count + 1];
+            xAfter = new float[count + 1];
+        }
+        final int[] lineAfter = this.lineAfter;
+        final float[] xAfter = this.xAfter;
+        int visible = 0;
+        int line = 0;
+        float x = 0;
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            final TokenBackgroundSpan token = index.get(i);
+            final int start = index.getStart(token);
+            final int end = index.getEnd(token);
+            final float gap = start > position ? paint.measureText(spannable, position, start) : 0;
+            final float tokenWidth = token.getSize(paint, spannable, start, end, null);
+            if (x > 0 && x + gap + tokenWidth > width) {
+                line++;
+                x = tokenWidth;
+            } else {
+                x += gap + tokenWidth;
+            }
+            if (line >= lines) {
+                break;
+            }
+            position = end;
+            visible = i + 1;
+            lineAfter[visible] = line;
+            xAfter[visible] = x;
+        }
+        if (visible == count) {
+            return;
+        }
+
+        // give back tokens until the summary chip fits after the last visible one
+        final float space = paint.measureText(" ");
+        while (visible > 0) {
+            final float summaryWidth = TokenSummarySpan.measure(paint, format, count - visible, paddingHorizontal);
+            if (xAfter[visible] + space + summaryWidth <= width
+                    || lineAfter[visible] + 1 < lines && summaryWidth <= width) {
+                break;
+            }
+            visible--;
+        }
+
+        setSummary(spannable, format, count, visible);
+        // the estimate ignores how the layout breaks around spaces: hide more tokens until the
+        // collapsed text really fits
+        while (visible > 0 && new StaticLayout(spannable, paint, width, Layout.Alignment.ALIGN_NORMAL,
+                1, 0, false).getLineCount() > lines) {
+            visible--;
+            removeSummary();
+            setSummary(spannable, format, count, visible);
+        }
+    }
+
+    private void setSummary(Spannable spannable, String format, int count, int visible) {
+        summary = new TokenSummarySpan(container, format, count - visible);
+        summaryText = spannable;
+        spannable.setSpan(summary, index.getStart(index.get(visible)), spannable.length(),
+                Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+    }
+
+    /**
+     * Shows every token again.
+     */
+    void expand() {
+        collapsed = false;
+        removeSummary();
+    }
+
+    private void removeSummary() {
+        if (summary != null) {
+            summaryText.removeSpan(summary);
+            summary = null;
+            summaryText = null;
+        }
+    }
+
+    /**
+     * Updates the selected state of the tokens, and moves the selection out of (or extends it
+     * over) the tokens it partially covers. Only the tokens at the selection bounds are looked
+     * up, and only the tokens whose selected state changes are updated.
+     */
+    void onSelectionChanged(int selectionStart, int selectionEnd) {
+        if (!index.attach(container.getText())) {
+            return;
+        }
+
+        if (selectionStart >= 0 && selectionEnd >= 0) {
+            final boolean isPointSelection = selectionStart == selectionEnd;
+            int newSelectionStart = selectionStart;
+            int newSelectionEnd = selectionEnd;
+
+            final TokenBackgroundSpan startToken = index.findContaining(selectionStart);
+            if (startToken != null) {
+                newSelectionStart = isPointSelection ? index.getEnd(startToken) : index.getStart(startToken);
+            }
+            final TokenBackgroundSpan endToken = index.findContaining(selectionEnd);
+            if (endToken != null) {
+                newSelectionEnd = index.getEnd(endToken);
+            }
+
+            if (newSelectionEnd != selectionEnd || newSelectionStart != selectionStart) {
+                // the selected state is updated when the adjusted selection is reported
+                Selection.setSelection((Spannable) container.getText(), newSelectionStart, newSelectionEnd);
+                return;
+            }
+        }
+
+        updateSelectedTokens(selectionStart, selectionEnd);
+    }
+
+    private void updateSelectedTokens(int selectionStart, int selectionEnd) {
+        final ArrayList<TokenBackgroundSpan> previous = selectedTokens;
+        selectedTokens = previouslySelectedTokens;
+        previouslySelectedTokens = previous;
+
+        final int low = Math.min(selectionStart, selectionEnd);
+        final int high = Math.max(selectionStart, selectionEnd);
+        final boolean hasSelection = low >= 0;
+        final boolean isPointSelection = low == high;
+
+        for (int i = 0, count = previous.size(); i < count; i++) {
+            final TokenBackgroundSpan token = previous.get(i);
+            if (!hasSelection || !isTokenSelected(token, low, high, isPointSelection)) {
+                token.setSelected(false);
+            }
+        }
+        previous.clear();
+
+        if (hasSelection) {
+            for (int i = index.firstEndingAfter(low, isPointSelection), count = index.size(); i < count; i++) {
+                final TokenBackgroundSpan token = index.get(i);
+                if (index.getStart(token) >= high) {
+                    break;
+                }
+                if (!token.isSelected()) {
+                    token.setSelected(true);
+                }
+                selectedTokens.add(token);
+            }
+        }
+    }
+
+    /**
+     * Matches the tokens {@link Spannable#getSpans(int, int, Class)} reports for the selection,
+     * minus the ones starting at its end.
+     */
+    private boolean isTokenSelected(TokenBackgroundSpan token, int low, int high, boolean isPointSelection) {
+        final int start = index.getStart(token);
+        final int end = index.getEnd(token);
+        if (start < 0) {
+            return false;
+        }
+        return isPointSelection ? start < low && end >= low : start < high && end > low;
+    }
+}
@@ -0,0 +1,68 @@
+package com.remind101.android.views;
+
+import android.graphics.Paint;
+
+/**
+ * Immutable chip style of the {@link TokenBackgroundSpan}s, with the paints of both the normal
+ * and the selected variant. One instance exists per {@link EnhancedTextStyle} and is referenced
+ * by every token of every view using that style, so tokens do not own any paint. The paints are
+ * never modified after construction.
+ */
+final class TokenStyle {
+
+    static final int STROKE_WIDTH = 2;
+
+    private final Paint backgroundPaint;
+    private final Paint selectedBackgroundPaint;
+    private final Paint borderPaint;
+    private final Paint selectedBorderPaint;
+    // -1 means "keep the color of the text"
+    private final int textColor;
+    private final int selectedTextColor;
+
+    final float paddingHorizontal;
+    final float paddingVertical;
+    final float rounding;
+
+    TokenStyle(EnhancedTextStyle style) {
+        backgroundPaint = newBackgroundPaint(style.tokenBackgroundColor);
+        selectedBackgroundPaint = newBackgroundPaint(style.tokenSelectedBackgroundColor);
+        borderPaint = newBorderPaint(style.tokenBorderColor);
+        selectedBorderPaint = newBorderPaint(style.tokenSelectedBorderColor);
+        textColor = style.tokenTextColor;
+        selectedTextColor = style.tokenSelectedTextColor;
+        paddingHorizontal = style.tokenHorizontalPadding;
+        paddingVertical = style.tokenVerticalPadding;
+        rounding = style.tokenBorderRadius;
+    }
+
+    private static Paint newBackgroundPaint(int color) {
+        Paint paint = new Paint();
+        paint.setColor(color);
+        return paint;
+    }
+
+    private static Paint newBorderPaint(int color) {
+        Paint paint = new Paint();
+        paint.setColor(color);
+        paint.setStrokeWidth(STROKE_WIDTH);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setAntiAlias(true);
+        return paint;
+    }
+
+    Paint getBackgroundPaint(boolean selected) {
+        return selected ? selectedBackgroundPaint : backgroundPaint;
+    }
+
+    Paint getBorderPaint(boolean selected) {
+        return selected ? selectedBorderPaint : borderPaint;
+    }
+
+    /**
+     * @return the color of the token text, or -1 to keep the color of the surrounding text
+     */
+    int getTextColor(boolean selected) {
+        return selected ? selectedTextColor : textColor;
+    }
+}
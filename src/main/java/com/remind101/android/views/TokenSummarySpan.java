@@ -0,0 +1,52 @@
+package com.remind101.android.views;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.text.NoCopySpan;
+import android.text.Spanned;
+import android.text.style.ReplacementSpan;
+
+/**
+ * Replaces the tokens that do not fit in a collapsed token field with a single "+N more" chip.
+ * The span covers the whole hidden tail of the text, so the layout measures one chip instead of
+ * every hidden token. The layout may still split the tail into several runs; only the first one
+ * is measured and drawn.
+ * <p/>
+ * The span is view state: it is a {@link NoCopySpan} and never ends up in a copy of the text.
+ */
+class TokenSummarySpan extends ReplacementSpan implements NoCopySpan {
+
+    private final String label;
+    private final TokenBackgroundSpan<Integer> chip;
+
+    TokenSummarySpan(EnhancedTextView container, String format, int hiddenCount) {
+        this.label = String.format(format, hiddenCount);
+        this.chip = new TokenBackgroundSpan<Integer>(hiddenCount, container);
+    }
+
+    /**
+     * @return the width of the chip for {@code hiddenCount} hidden tokens
+     */
+    static float measure(Paint paint, String format, int hiddenCount, float paddingHorizontal) {
+        return paint.measureText(String.format(format, hiddenCount)) + paddingHorizontal * 2;
+    }
+
+    private boolean isFirstRun(CharSequence text, int start) {
+        return !(text instanceof Spanned) || ((Spanned) text).getSpanStart(this) == start;
+    }
+
+    @Override
+    public int getSize(Paint paint, CharSequence text, int start, int end, Paint.FontMetricsInt fm) {
+        if (!isFirstRun(text, start)) {
+            return 0;
+        }
+        return chip.getSize(paint, label, 0, label.length(), fm);
+    }
+
+    @Override
+    public void draw(Canvas canvas, CharSequence text, int start, int end, float x, int top, int y, int bottom, Paint paint) {
+        if (isFirstRun(text, start)) {
+            chip.draw(canvas, label, 0, label.length(), x, top, y, bottom, paint);
+        }
+    }
+}
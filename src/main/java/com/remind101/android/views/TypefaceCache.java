@@ -0,0 +1,102 @@
+package com.remind101.android.views;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.os.Process;
+
+import java.util.HashMap;
+
+/**
+ * Process wide registry of the typefaces referenced by the {@code typeface} and {@code font}
+ * attributes. Each font is read from {@code assets/fonts/<name>.ttf} once and shared by every
+ * view afterwards.
+ * <p/>
+ * Call {@link #preload(Context, String...)} from {@code Application.onCreate()} so the fonts
+ * are parsed on a background thread and inflation never touches the assets.
+ * <p/>
+ * Each font is loaded under its own lock, so looking up a loaded font never waits for another
+ * font being parsed. A font that fails to load is not retried.
+ */
+public class TypefaceCache {
+
+    private static final HashMap<String, Entry> typefaces = new HashMap<String, Entry>();
+
+    private static class Entry {
+        volatile boolean loaded;
+        Typeface typeface;
+        RuntimeException failure;
+    }
+
+    private TypefaceCache() {
+    }
+
+    /**
+     * Returns the typeface with the given name, loading it from the assets if it has not been
+     * loaded yet.
+     *
+     * @throws RuntimeException if the font asset cannot be found or parsed
+     */
+    public static Typeface get(Context context, String name) {
+        Entry entry;
+        synchronized (typefaces) {
+            entry = typefaces.get(name);
+            if (entry == null) {
+                entry = new Entry();
+                typefaces.put(name, entry);
+            }
+        }
+        if (!entry.loaded) {
+            synchronized (entry) {
+                if (!entry.loaded) {
+                    try {
+                        entry.typeface = Typeface.createFromAsset(context.getAssets(), "fonts/" + name + ".ttf");
+                    } catch (RuntimeException e) {
+                        entry.failure = e;
+                    }
+                    entry.loaded = true;
+                }
+            }
+        }
+        if (entry.failure != null) {
+            throw new RuntimeException("Cannot load font asset fonts/" + name + ".ttf", entry.failure);
+        }
+        return entry.typeface;
+    }
+
+    /**
+     * @return the typeface if it has already been loaded, null otherwise
+     */
+    public static Typeface getIfLoaded(String name) {
+        final Entry entry;
+        synchronized (typefaces) {
+            entry = typefaces.get(name);
+        }
+        return entry != null && entry.loaded ? entry.typeface : null;
+    }
+
+    /**
+     * Loads the given fonts on a background thread.
+     */
+    public static void preload(Context context, final String... names) {
+        final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                for (String name : names) {
+                    try {
+                        get(appContext, name);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, "TypefaceCache-preload").start();
+    }
+
+    public static void clear() {
+        synchronized (typefaces) {
+            typefaces.clear();
+        }
+    }
+}